@@ -16,16 +16,38 @@
  */
 package org.kore.kolab.notes;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
 /**
  *
  * @author Konrad Renner
  */
-public class Attachment {
+public class Attachment implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private final String id;
     private final String mimeType;
     private final String fileName;
+    //null, if the data is not loaded yet
     private byte[] data;
+    private long size;
+    private Loader loader;
+    //SHA-256 of the data, null if it is not known yet
+    private String contentHash;
 
     public Attachment(String id, String fileName, String mimeType) {
         this.id = id;
@@ -42,12 +64,256 @@ public class Attachment {
         return fileName;
     }
 
+    /**
+     * Returns the data of the attachment. If the data is not loaded yet, it
+     * will be loaded with the loader of the attachment. The returned array is
+     * a copy, because equal data of different attachments is shared in
+     * memory.
+     *
+     * @return byte[], null if the attachment has no data
+     * @throws IllegalStateException - if the data could not be loaded
+     */
     public byte[] getData() {
-        return data;
+        if (data != null) {
+            return data.clone();
+        } else if (loader == null) {
+            return null;
+        }
+
+        try {
+            byte[] loaded = loader.load(this);
+            if (!loader.isCaching()) {
+                //the loader is kept, so it is known that the data is unchanged
+                contentHash = ContentHash.of(loaded);
+                data = ContentPool.intern(contentHash, loaded);
+                return data.clone();
+            }
+            return loaded;
+        } catch (IOException e) {
+            throw new IllegalStateException("Data of attachment " + id + " could not be loaded", e);
+        }
     }
 
+    /**
+     * Sets the data of the attachment. Equal data of different attachments is
+     * shared in memory, so a copy of the array is kept. If the data is equal
+     * to the actual data, the attachment stays unchanged.
+     *
+     * @param bytes - null removes the data
+     */
     public void setData(byte[] bytes) {
-        this.data = bytes;
+        if (bytes == null) {
+            setLoader(null, 0);
+            return;
+        }
+
+        String hash = ContentHash.of(bytes);
+        byte[] shared = ContentPool.intern(hash, bytes.clone());
+        if (!hash.equals(contentHash)) {
+            replaceLoader(null);
+            contentHash = hash;
+        }
+        this.data = shared;
+    }
+
+    /**
+     * Sets the remaining bytes of the buffer as data. The position of the
+     * buffer is not changed.
+     *
+     * @param buffer
+     */
+    public void setData(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        setData(bytes);
+    }
+
+    /**
+     * Sets the content of the file as data. The file is read on every access,
+     * so the data is not held in memory and the file must exist as long as
+     * the attachment is used.
+     *
+     * @param file
+     */
+    public void setData(File file) {
+        setLoader(new FileLoader(file, false), file.length());
+    }
+
+    /**
+     * Sets the content of the stream as data. The stream is copied to a
+     * temporary file, so the data is not held in memory. The file is deleted,
+     * when the data of the attachment is replaced. The stream will be
+     * closed.
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void setData(InputStream in) throws IOException {
+        File file = File.createTempFile("kolabnotes-attachment", ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                copy(in, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+        setLoader(new FileLoader(file, true), file.length());
+    }
+
+    /**
+     * Opens a stream on the data of the attachment. If the data is not loaded
+     * yet, it is streamed from the loader, without loading it completely into
+     * memory. The stream must be closed by the caller.
+     *
+     * @return InputStream, null if the attachment has no data
+     * @throws IOException
+     */
+    public InputStream openStream() throws IOException {
+        if (data != null) {
+            return new ByteArrayInputStream(data);
+        } else if (loader == null) {
+            return null;
+        }
+        return loader.open(this);
+    }
+
+    /**
+     * Writes the data of the attachment to the given stream. Nothing is
+     * written, if the attachment has no data. The stream is not closed.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (data != null) {
+            out.write(data);
+            return;
+        } else if (loader == null) {
+            return;
+        }
+
+        InputStream in = openStream();
+        try {
+            copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the data of the attachment to the given file
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeTo(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Discards the data of the attachment, it will be loaded with the given
+     * loader on the next access
+     *
+     * @param loader
+     * @param size - size of the attachment on the server
+     */
+    public void setLoader(Loader loader, long size) {
+        replaceLoader(loader);
+        this.size = size;
+        this.data = null;
+        this.contentHash = null;
+    }
+
+    private void replaceLoader(Loader newLoader) {
+        if (loader instanceof FileLoader && loader != newLoader) {
+            ((FileLoader) loader).discard();
+        }
+        this.loader = newLoader;
+    }
+
+    /**
+     * Replaces the loader, e.g. because the data was stored at another place
+     * on the server. Data which is loaded already and the hash are kept.
+     *
+     * @param loader
+     */
+    public void rebind(Loader loader) {
+        replaceLoader(loader);
+    }
+
+    public Loader getLoader() {
+        return loader;
+    }
+
+    public boolean isLoaded() {
+        return data != null;
+    }
+
+    /**
+     * @return the data, which is shared with other attachments and must not
+     * be changed, null if it is not loaded
+     */
+    byte[] getSharedData() {
+        return data;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the data, so that attachments can be
+     * compared without their data. If the hash is not known yet, the data is
+     * streamed once to create it.
+     *
+     * @return String, null if the attachment has no data
+     * @throws IllegalStateException - if the data could not be read
+     */
+    public String getContentHash() {
+        if (contentHash != null) {
+            return contentHash;
+        }
+
+        if (data != null) {
+            contentHash = ContentHash.of(data);
+            return contentHash;
+        } else if (loader == null) {
+            return null;
+        }
+
+        try {
+            MessageDigest digest = ContentHash.createDigest();
+            InputStream in = new DigestInputStream(openStream(), digest);
+            try {
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                    //just for the digest
+                }
+            } finally {
+                in.close();
+            }
+            contentHash = ContentHash.toHex(digest);
+            return contentHash;
+        } catch (IOException e) {
+            throw new IllegalStateException("Data of attachment " + id + " could not be read", e);
+        }
+    }
+
+    /**
+     * Returns the size of the data. If the data is not loaded yet, the size
+     * on the server is returned, which can include the transfer encoding
+     *
+     * @return long
+     */
+    public long getSize() {
+        return data == null ? size : data.length;
     }
 
     public String getId() {
@@ -88,4 +354,135 @@ public class Attachment {
         return "Attachment{" + "id=" + id + ", mimeType=" + mimeType + ", fileName=" + fileName + '}';
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (loader instanceof MemoryLoader) {
+            //the data of a temporary file
+            data = ((MemoryLoader) loader).bytes;
+            loader = null;
+        }
+    }
+
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int bytes;
+        while ((bytes = in.read(buffer)) != -1) {
+            out.write(buffer, 0, bytes);
+        }
+    }
+
+    /**
+     * Loads the data of attachments, which are not loaded yet
+     */
+    public interface Loader extends Serializable {
+
+        byte[] load(Attachment attachment) throws IOException;
+
+        /**
+         * Opens a stream on the data, which must be closed by the caller
+         *
+         * @param attachment
+         * @return InputStream
+         * @throws IOException
+         */
+        InputStream open(Attachment attachment) throws IOException;
+
+        /**
+         * @return true, if the loader caches the loaded data, so that the
+         * attachment does not keep it
+         */
+        boolean isCaching();
+    }
+
+    /**
+     * Reads the data from a file
+     */
+    static class FileLoader implements Loader {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+        //temporary files belong to the attachment and are deleted, if they are not used anymore
+        private final boolean temporary;
+
+        FileLoader(File file, boolean temporary) {
+            this.file = file;
+            this.temporary = temporary;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        @Override
+        public byte[] load(Attachment attachment) throws IOException {
+            InputStream in = open(attachment);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+                copy(in, out);
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public InputStream open(Attachment attachment) throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public boolean isCaching() {
+            return true;
+        }
+
+        void discard() {
+            if (temporary) {
+                file.delete();
+            }
+        }
+
+        //a temporary file does not exist anymore, when the attachment is deserialized
+        private Object writeReplace() throws ObjectStreamException {
+            if (!temporary) {
+                return this;
+            }
+
+            try {
+                return new MemoryLoader(load(null));
+            } catch (IOException e) {
+                throw new IllegalStateException("Temporary file " + file + " of attachment could not be read", e);
+            }
+        }
+    }
+
+    /**
+     * Holds the data of a serialized temporary file, it is handed over to the
+     * attachment, when it is deserialized
+     */
+    static class MemoryLoader implements Loader {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] bytes;
+
+        MemoryLoader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public byte[] load(Attachment attachment) {
+            return bytes;
+        }
+
+        @Override
+        public InputStream open(Attachment attachment) {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public boolean isCaching() {
+            return false;
+        }
+    }
 }
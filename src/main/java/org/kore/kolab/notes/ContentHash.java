@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helper for the SHA-256 hashes which are used to identify contents
+ *
+ * @author Konrad Renner
+ */
+public final class ContentHash {
+
+    public static final String ALGORITHM = "SHA-256";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentHash() {
+        //just static methods
+    }
+
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            //every Java platform must support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String of(byte[] bytes) {
+        MessageDigest digest = createDigest();
+        digest.update(bytes);
+        return toHex(digest);
+    }
+
+    public static String toHex(MessageDigest digest) {
+        byte[] hash = digest.digest();
+        char[] ret = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            ret[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            ret[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(ret);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of contents, which are identified by their SHA-256 hash, so that equal
+ * contents share one array in memory. The pool holds the arrays weakly, so
+ * contents which are not used anymore are removed from the pool after the
+ * garbage collector cleared them.
+ *
+ * @author Konrad Renner
+ */
+public final class ContentPool {
+
+    //the hashes are held strongly, a hash is mostly created just for the lookup and would be cleared at once otherwise
+    private static final Map<String, PooledContent> CONTENTS = new HashMap<String, PooledContent>();
+    private static final ReferenceQueue<byte[]> CLEARED = new ReferenceQueue<byte[]>();
+
+    private ContentPool() {
+        //just static methods
+    }
+
+    /**
+     * Returns the pooled array with the same content, or adds the given one
+     * to the pool. The arrays must not be changed afterwards.
+     *
+     * @param hash - SHA-256 hash of the content, like it is created by
+     * ContentHash
+     * @param content
+     * @return byte[]
+     */
+    public static byte[] intern(String hash, byte[] content) {
+        synchronized (CONTENTS) {
+            purge();
+
+            PooledContent pooled = CONTENTS.get(hash);
+            byte[] ret = pooled == null ? null : pooled.get();
+            if (ret == null) {
+                CONTENTS.put(hash, new PooledContent(hash, content, CLEARED));
+                ret = content;
+            }
+            return ret;
+        }
+    }
+
+    public static byte[] intern(byte[] content) {
+        return intern(ContentHash.of(content), content);
+    }
+
+    private static void purge() {
+        Reference<? extends byte[]> cleared;
+        while ((cleared = CLEARED.poll()) != null) {
+            PooledContent content = (PooledContent) cleared;
+            //the hash could be pooled again with another array in the meantime
+            if (CONTENTS.get(content.hash) == content) {
+                CONTENTS.remove(content.hash);
+            }
+        }
+    }
+
+    static class PooledContent extends WeakReference<byte[]> {
+
+        private final String hash;
+
+        PooledContent(String hash, byte[] content, ReferenceQueue<byte[]> queue) {
+            super(content, queue);
+            this.hash = hash;
+        }
+    }
+}
@@ -16,6 +16,7 @@
  */
 package org.kore.kolab.notes;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.Map;
 import java.util.SortedSet;
@@ -47,6 +48,52 @@ public interface RemoteNotesRepository extends NotesRepository {
      */
     void refresh(Date modificationDate, Listener... listener);
 
+    /**
+     * Synchronizes the local cache incrementally with data from a remote
+     * server. Just new, changed and removed notes are transfered and the
+     * cache is updated in place. Changes are detected with CONDSTORE/QRESYNC
+     * (RFC 7162) if the server supports it, otherwise with UIDNEXT and the
+     * list of UIDs in a folder. If there was no refresh before or if there are
+     * tracked local changes, a complete refresh will be done. Note: local
+     * changes will be discarded!
+     *
+     * @param listener
+     */
+    void sync(Listener... listener);
+
+    /**
+     * Starts the push mode. The folders of the repository are watched with
+     * IMAP IDLE and every change on the server is loaded into the cache
+     * immediately, so polling with refresh or sync is not needed anymore. The
+     * listener is called from background threads. Folders which are created
+     * after the start are not watched.
+     *
+     * @param listener
+     * @throws IllegalStateException - if the server does not support IDLE
+     */
+    void startPush(PushListener listener);
+
+    /**
+     * Stops the push mode, if it is running
+     */
+    void stopPush();
+
+    /**
+     * Starts loading the notes, which were not loaded completely by a refresh
+     * with a modification date, in the background. The most recently modified
+     * notes are loaded first, a note which is requested with getNote is
+     * loaded before all others. The listener is called from background
+     * threads.
+     *
+     * @param listener
+     */
+    void startPrefetch(Listener... listener);
+
+    /**
+     * Stops loading notes in the background, if it is running
+     */
+    void stopPrefetch();
+
     /**
      * Sends tracked changes to the remote server. Note: Changes are just
      * tracked, if the changes are made on objects which "live" in the the
@@ -75,6 +122,16 @@ public interface RemoteNotesRepository extends NotesRepository {
      */
     void fillUnloadedNote(Note note);
 
+    /**
+     * Fills the given unloaded notes with data from the server. The notes are
+     * loaded together with one request per folder, which is much faster than
+     * calling fillUnloadedNote for every note. Notes which are not found, or
+     * which are loaded, are ignored.
+     *
+     * @param notes
+     */
+    void fillUnloadedNotes(Collection<Note> notes);
+
     /**
      * Checks if a note is completely loaded from a server, after a refresh
      *
@@ -106,4 +163,38 @@ public interface RemoteNotesRepository extends NotesRepository {
 
         void onFolderSyncException(String folderName, Exception e);
     }
+
+    interface PushListener extends Listener {
+
+        void onNoteAdded(Note note);
+
+        void onNoteChanged(Note note);
+
+        void onNoteRemoved(String noteUid);
+    }
+
+    /**
+     * Listener, which is informed about every single note while a refresh,
+     * sync or prefetch is running, so that the notes can be used before the
+     * whole folder is loaded. The note of onNoteLoaded could be not
+     * completely loaded, see noteCompletelyLoaded.
+     */
+    interface ProgressListener extends Listener {
+
+        void onNoteLoaded(String folderName, Note note);
+
+        void onNoteRemoved(String folderName, String noteUid);
+
+        /**
+         * Called after every loaded chunk of messages of a folder
+         *
+         * @param folderName
+         * @param loadedMessages - number of messages of the folder, which are
+         * loaded until now
+         * @param totalMessages - number of messages of the folder, which will
+         * be loaded
+         * @param bytes - estimated transfered bytes of the folder until now
+         */
+        void onFolderProgress(String folderName, int loadedMessages, int totalMessages, long bytes);
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In memory cache for the data of attachments, which are loaded on demand. The
+ * cache holds at most the given number of bytes, the least recently used
+ * entries are evicted first. Evicted entries are moved to the overflow
+ * storage, if there is one, and moved back into memory on the next access.
+ *
+ * @author Konrad Renner
+ */
+public class AttachmentCache implements AttachmentStorage {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, byte[]> entries;
+    private final AttachmentStorage overflow;
+    private long bytes;
+
+    /**
+     * @param maxBytes - maximum number of bytes, which are cached
+     */
+    public AttachmentCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * @param maxBytes - maximum number of bytes, which are cached in memory
+     * @param overflow - storage for evicted entries, e.g. a
+     * DiskAttachmentStore, can be null
+     */
+    public AttachmentCache(long maxBytes, AttachmentStorage overflow) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("The size of the cache must not be negative, but was " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.overflow = overflow;
+        this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    }
+
+    public AttachmentStorage getOverflow() {
+        return overflow;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param key
+     * @return the cached data or null, if nothing is cached for the key
+     */
+    @Override
+    public synchronized byte[] get(String key) {
+        byte[] data = entries.get(key);
+        if (data != null || overflow == null) {
+            return data;
+        }
+
+        data = overflow.get(key);
+        if (data != null && data.length <= maxBytes) {
+            overflow.remove(key);
+            add(key, data);
+        }
+        return data;
+    }
+
+    /**
+     * Caches the data. Data which is bigger than the cache is not cached.
+     *
+     * @param key
+     * @param data
+     */
+    @Override
+    public synchronized void put(String key, byte[] data) {
+        remove(key);
+        if (data.length > maxBytes) {
+            if (overflow != null) {
+                overflow.put(key, data);
+            }
+            return;
+        }
+
+        add(key, data);
+    }
+
+    private void add(String key, byte[] data) {
+        entries.put(key, data);
+        bytes += data.length;
+
+        Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, byte[]> eldest = it.next();
+            bytes -= eldest.getValue().length;
+            it.remove();
+
+            if (overflow != null) {
+                overflow.put(eldest.getKey(), eldest.getValue());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        byte[] removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= removed.length;
+        }
+
+        if (overflow != null) {
+            overflow.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+
+        if (overflow != null) {
+            overflow.clear();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import korex.activation.DataSource;
+import org.kore.kolab.notes.Attachment;
+
+/**
+ * DataSource, which streams the data of an attachment, so that it must not be
+ * copied into memory before it is written into a message
+ *
+ * @author Konrad Renner
+ */
+public class AttachmentDataSource implements DataSource {
+
+    private final Attachment attachment;
+
+    public AttachmentDataSource(Attachment attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        InputStream in = attachment.openStream();
+        if (in == null) {
+            throw new IOException("Attachment " + attachment.getId() + " has no data");
+        }
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("The data of an attachment can not be written with a DataSource");
+    }
+
+    @Override
+    public String getContentType() {
+        return attachment.getMimeType();
+    }
+
+    @Override
+    public String getName() {
+        return attachment.getFileName();
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+/**
+ * Storage for the data of attachments, which are loaded on demand. The key
+ * identifies the body part of an attachment on the server.
+ *
+ * @author Konrad Renner
+ */
+public interface AttachmentStorage {
+
+    /**
+     * @param key
+     * @return the stored data or null, if nothing is stored for the key
+     */
+    byte[] get(String key);
+
+    /**
+     * Stores the data. A storage may decide not to store the data, e.g. if it
+     * is too big.
+     *
+     * @param key
+     * @param data
+     */
+    void put(String key, byte[] data);
+
+    void remove(String key);
+
+    void clear();
+}
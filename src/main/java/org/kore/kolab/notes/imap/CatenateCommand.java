@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.AppendUID;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.util.CRLFOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import korex.mail.MessagingException;
+import korex.mail.internet.ContentType;
+import korex.mail.internet.MimeMessage;
+
+/**
+ * Appends a message, which reuses body parts of an existing message on the
+ * server, with one "APPEND ... CATENATE" command (RFC 4469). Just the given
+ * message is transfered, the body parts are inserted by the server before
+ * the last part of the message, which must be a multipart.
+ *
+ * @author Konrad Renner
+ */
+public class CatenateCommand implements IMAPFolder.ProtocolCommand {
+
+    private final String folderName;
+    private final MimeMessage message;
+    private final String sourceUrl;
+    private final List<String> sections;
+    private Response result;
+
+    /**
+     * @param folderName - folder to which the message is appended
+     * @param message
+     * @param sourceFolderName - folder of the existing message
+     * @param sourceUidValidity
+     * @param sourceUid - UID of the existing message
+     * @param sections - sections of the body parts of the existing message,
+     * in the order in which they are inserted
+     */
+    public CatenateCommand(String folderName, MimeMessage message, String sourceFolderName, long sourceUidValidity, long sourceUid, List<String> sections) {
+        this.folderName = folderName;
+        this.message = message;
+        this.sourceUrl = createUrl(sourceFolderName, sourceUidValidity, sourceUid);
+        this.sections = sections;
+    }
+
+    @Override
+    public Object doCommand(IMAPProtocol imapp) throws ProtocolException {
+        byte[] content;
+        String delimiter;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            //IMAP literals must use CRLF as line separator
+            OutputStream os = new CRLFOutputStream(bos);
+            message.writeTo(os);
+            os.flush();
+            content = bos.toByteArray();
+            delimiter = "\r\n--" + new ContentType(message.getContentType()).getParameter("boundary") + "\r\n";
+        } catch (IOException e) {
+            throw new ProtocolException("Unable to write message: " + e.getMessage());
+        } catch (MessagingException e) {
+            throw new ProtocolException("Unable to write message: " + e.getMessage());
+        }
+
+        List<Object> layout = createParts(content, toAscii(delimiter), sourceUrl, sections);
+        if (layout == null) {
+            throw new ProtocolException("The message is not a multipart");
+        }
+
+        Argument parts = new Argument();
+        for (Object part : layout) {
+            if (part instanceof byte[]) {
+                parts.writeAtom("TEXT");
+                parts.writeBytes((byte[]) part);
+            } else {
+                parts.writeAtom("URL");
+                parts.writeString((String) part);
+            }
+        }
+
+        Argument command = new Argument();
+        command.writeString(BASE64MailboxEncoder.encode(folderName));
+        command.writeAtom("CATENATE");
+        command.writeArgument(parts);
+
+        Response[] response = imapp.command("APPEND", command);
+        imapp.notifyResponseHandlers(response);
+        result = response[response.length - 1];
+        imapp.handleResult(result);
+        return null;
+    }
+
+    /**
+     * @return the UID of the new message or null, if the server did not send
+     * APPENDUID
+     */
+    public AppendUID getAppendUID() {
+        AppendUID[] uids = MultiAppendCommand.parseAppendUIDs(result, 1);
+        return uids == null ? null : uids[0];
+    }
+
+    /**
+     * Splits the message before its last body part and inserts the body parts
+     * of the existing message there, every one with a delimiter, its MIME
+     * header and its body
+     *
+     * @param content - the message with CRLF line separators
+     * @param delimiter - CRLF, "--", the boundary and CRLF
+     * @param sourceUrl - URL of the existing message, see createUrl
+     * @param sections
+     * @return List with byte[] for the TEXT parts and String for the URL
+     * parts of the CATENATE command, or null if the message has no delimiter
+     */
+    static List<Object> createParts(byte[] content, byte[] delimiter, String sourceUrl, List<String> sections) {
+        int lastPart = lastIndexOf(content, delimiter);
+        if (lastPart < 0) {
+            return null;
+        }
+
+        List<Object> parts = new ArrayList<Object>();
+        parts.add(Arrays.copyOfRange(content, 0, lastPart));
+        for (String section : sections) {
+            parts.add(delimiter);
+            //the MIME header of a part ends with the empty line before the body
+            parts.add(sourceUrl + section + ".MIME");
+            parts.add(sourceUrl + section);
+        }
+        parts.add(Arrays.copyOfRange(content, lastPart, content.length));
+        return parts;
+    }
+
+    /**
+     * Creates a relative IMAP URL (RFC 5092) of a message, to which the
+     * section of a body part must be appended
+     *
+     * @param folderName
+     * @param uidValidity
+     * @param uid
+     * @return String
+     */
+    static String createUrl(String folderName, long uidValidity, long uid) {
+        StringBuilder url = new StringBuilder("/");
+        for (byte b : toAscii(BASE64MailboxEncoder.encode(folderName))) {
+            char c = (char) b;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-._~!$'()*+,=:@&/".indexOf(c) >= 0) {
+                url.append(c);
+            } else {
+                url.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16))).append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            }
+        }
+        url.append(";UIDVALIDITY=").append(uidValidity).append("/;UID=").append(uid).append("/;SECTION=");
+        return url.toString();
+    }
+
+    static int lastIndexOf(byte[] content, byte[] pattern) {
+        for (int i = content.length - pattern.length; i >= 0; i--) {
+            int j = 0;
+            while (j < pattern.length && content[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static byte[] toAscii(String value) {
+        try {
+            return value.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            //every Java platform must support US-ASCII
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.kore.kolab.notes.ContentHash;
+
+/**
+ * Stores the data of attachments in a directory. The files are named after
+ * the SHA-256 hash of their content, so equal data is stored just once. The
+ * store holds at most the given number of bytes, the least recently used
+ * entries are deleted first.
+ *
+ * The directory is owned by the store, files of an earlier run are deleted.
+ * Errors of the file system are not reported, the affected data is just not
+ * stored and will be loaded from the server again.
+ *
+ * @author Konrad Renner
+ */
+public class DiskAttachmentStore implements AttachmentStorage {
+
+    static final String SUFFIX = ".att";
+
+    private final File directory;
+    private final long maxBytes;
+    //Key is the key of the attachment, value the hash of the content
+    private final LinkedHashMap<String, String> keys;
+    //Key is the hash of the content, value the number of keys with this content
+    private final Map<String, Integer> references;
+    //Key is the hash of the content, value the size of the file
+    private final Map<String, Integer> sizes;
+    private long bytes;
+
+    /**
+     * @param directory
+     * @param maxBytes - maximum number of bytes, which are stored
+     */
+    public DiskAttachmentStore(File directory, long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("The size of the store must not be negative, but was " + maxBytes);
+        }
+        directory.mkdirs();
+        if (!directory.isDirectory()) {
+            throw new IllegalArgumentException(directory + " is not a directory");
+        }
+
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.keys = new LinkedHashMap<String, String>(16, 0.75f, true);
+        this.references = new HashMap<String, Integer>();
+        this.sizes = new HashMap<String, Integer>();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    /**
+     * @return number of files in the directory
+     */
+    public synchronized int getFileCount() {
+        return references.size();
+    }
+
+    @Override
+    public synchronized byte[] get(String key) {
+        String hash = keys.get(key);
+        if (hash == null) {
+            return null;
+        }
+
+        try {
+            return read(file(hash));
+        } catch (IOException e) {
+            //e.g. the file was deleted by someone else
+            remove(key);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, byte[] data) {
+        remove(key);
+        if (data.length > maxBytes) {
+            return;
+        }
+
+        String hash = ContentHash.of(data);
+        Integer count = references.get(hash);
+        if (count == null) {
+            File file = file(hash);
+            try {
+                write(file, data);
+            } catch (IOException e) {
+                file.delete();
+                return;
+            }
+            sizes.put(hash, data.length);
+            bytes += data.length;
+            count = 0;
+        }
+        references.put(hash, count + 1);
+        keys.put(key, hash);
+
+        Iterator<Map.Entry<String, String>> it = keys.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            String eldest = it.next().getValue();
+            it.remove();
+            release(eldest);
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        String hash = keys.remove(key);
+        if (hash != null) {
+            release(hash);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (String hash : references.keySet()) {
+            file(hash).delete();
+        }
+        references.clear();
+        sizes.clear();
+        keys.clear();
+        bytes = 0;
+    }
+
+    private void release(String hash) {
+        int count = references.get(hash) - 1;
+        if (count > 0) {
+            references.put(hash, count);
+            return;
+        }
+
+        references.remove(hash);
+        bytes -= sizes.remove(hash);
+        file(hash).delete();
+    }
+
+    File file(String hash) {
+        return new File(directory, hash + SUFFIX);
+    }
+
+    static byte[] read(File file) throws IOException {
+        //the data is copied to the heap anyway, a mapping would just block the deletion of the file on some platforms until the next GC
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("The file is too large: " + file);
+            }
+            byte[] data = new byte[(int) length];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    static void write(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.UID;
+import com.sun.mail.imap.protocol.UIDSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fetches the same body part of all messages with the given UIDs with one "UID
+ * FETCH" command. The \Seen flag is not changed and the content is returned
+ * as it is transfered, so without decoding of the Content-Transfer-Encoding.
+ * The content is not copied out of the responses of the server.
+ *
+ * @author Konrad Renner
+ */
+public class FetchBodyPartCommand implements IMAPFolder.ProtocolCommand {
+
+    private final long[] uids;
+    private final String section;
+    private final Map<Long, ByteArray> contents;
+
+    /**
+     * @param uids
+     * @param section - IMAP section specification of the body part, e.g. "2"
+     */
+    public FetchBodyPartCommand(long[] uids, String section) {
+        this.uids = uids;
+        this.section = section;
+        this.contents = new HashMap<Long, ByteArray>();
+    }
+
+    @Override
+    public Object doCommand(IMAPProtocol imapp) throws ProtocolException {
+        String uidSet = UIDSet.toString(UIDSet.createUIDSets(uids));
+
+        Response[] response = imapp.command("UID FETCH " + uidSet + " (UID BODY.PEEK[" + section + "])", null);
+        imapp.notifyResponseHandlers(response);
+        imapp.handleResult(response[response.length - 1]);
+
+        for (int i = 0; i < response.length; i++) {
+            if (response[i] instanceof FetchResponse) {
+                FetchResponse fetch = (FetchResponse) response[i];
+                UID uid = fetch.getItem(UID.class);
+                BODY body = fetch.getItem(BODY.class);
+
+                if (uid != null && body != null && body.getByteArray() != null) {
+                    contents.put(uid.uid, body.getByteArray());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the content of the body part per message UID. Messages without
+     * the body part are missing.
+     *
+     * @return Map
+     */
+    public Map<Long, ByteArray> getContents() {
+        return contents;
+    }
+}
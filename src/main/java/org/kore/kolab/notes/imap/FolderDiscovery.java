@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.imap.IMAPFolder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import korex.mail.Folder;
+import korex.mail.MessagingException;
+import korex.mail.Store;
+
+/**
+ * Result of the discovery of the Kolab folder types of an account. All types
+ * are requested with one round trip and shared between all operations, which
+ * need to know the notes, shared notes or configuration folders. If the
+ * server does not support the discovery, it is incomplete and the types must
+ * be requested per folder like before. An instance belongs to one operation
+ * and is not thread safe, the FolderMetadataCache hands out copies.
+ *
+ * @author Konrad Renner
+ */
+class FolderDiscovery {
+
+    static final FolderDiscovery INCOMPLETE = new FolderDiscovery(null);
+
+    //type of folders, which have no Kolab folder type
+    static final String UNTYPED = "";
+
+    private Map<String, String> folderTypes;
+    //true, if the types are from the FolderMetadataCache and could be outdated
+    private boolean cached;
+
+    FolderDiscovery(Map<String, String> folderTypes) {
+        this(folderTypes, false);
+    }
+
+    FolderDiscovery(Map<String, String> folderTypes, boolean cached) {
+        this.folderTypes = folderTypes;
+        this.cached = cached;
+    }
+
+    static FolderDiscovery discover(Store store) {
+        GetAllFolderTypesCommand command = new GetAllFolderTypesCommand();
+        try {
+            Folder defaultFolder = store.getDefaultFolder();
+            if (!(defaultFolder instanceof IMAPFolder)) {
+                return INCOMPLETE;
+            }
+            ((IMAPFolder) defaultFolder).doCommand(command);
+        } catch (MessagingException e) {
+            return INCOMPLETE;
+        }
+        return new FolderDiscovery(command.getFolderTypes());
+    }
+
+    Map<String, String> getFolderTypes() {
+        return folderTypes;
+    }
+
+    boolean isComplete() {
+        return folderTypes != null;
+    }
+
+    boolean isCached() {
+        return cached;
+    }
+
+    /**
+     * Takes the types of a new discovery, e.g. after the cached types were
+     * outdated
+     *
+     * @param discovery
+     */
+    void update(FolderDiscovery discovery) {
+        this.folderTypes = discovery.folderTypes == null ? null : new LinkedHashMap<String, String>(discovery.folderTypes);
+        this.cached = false;
+    }
+
+    /**
+     * Remembers, that the given folder has no Kolab folder type
+     *
+     * @param fullName
+     */
+    void putUntyped(String fullName) {
+        folderTypes.put(fullName, UNTYPED);
+    }
+
+    String getFolderType(String fullName) {
+        return folderTypes == null ? null : folderTypes.get(fullName);
+    }
+
+    boolean isNotesFolder(String fullName) {
+        String type = getFolderType(fullName);
+        return type != null && type.contains("note");
+    }
+
+    boolean isConfigurationFolder(String fullName) {
+        String type = getFolderType(fullName);
+        return type != null && type.contains("configuration");
+    }
+
+    /**
+     * Returns the first configuration folder, in the order of the server
+     *
+     * @return String or null, if there is no configuration folder
+     */
+    String getConfigurationFolderName() {
+        if (folderTypes != null) {
+            for (String name : folderTypes.keySet()) {
+                if (isConfigurationFolder(name)) {
+                    return name;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the notes folders, which are shared by other users or are
+     * public
+     *
+     * @return List
+     */
+    List<String> getSharedNotesFolderNames() {
+        if (folderTypes == null) {
+            return Collections.emptyList();
+        }
+
+        List<String> ret = new ArrayList<String>();
+        for (String name : folderTypes.keySet()) {
+            if (isSharedFolder(name) && isNotesFolder(name)) {
+                ret.add(name);
+            }
+        }
+        return ret;
+    }
+
+    static boolean isSharedFolder(String fullName) {
+        //shared folders containing /, which are forbidden for "normal" folders
+        return fullName.startsWith("Other Users") || fullName.startsWith("Shared Folders");
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.kore.kolab.notes.AccountInformation;
+
+/**
+ * Cache for the metadata of folders, which almost never changes: the Kolab
+ * folder types, the location of the configuration folder and the rights on
+ * shared folders. Entries expire after their time to live and can be
+ * invalidated explicitly. If a file is given, the cache is persisted, so that
+ * a restarted repository does not have to discover the folders again.
+ *
+ * @author Konrad Renner
+ */
+public class FolderMetadataCache {
+
+    public static final long DEFAULT_TYPES_TTL = 30 * 60 * 1000;
+    public static final long DEFAULT_RIGHTS_TTL = 60 * 60 * 1000;
+
+    private final long typesTtl;
+    private final long rightsTtl;
+    private final File file;
+    private HashMap<String, Entries> entries;
+    private boolean changed;
+
+    public FolderMetadataCache() {
+        this(DEFAULT_TYPES_TTL, DEFAULT_RIGHTS_TTL, null);
+    }
+
+    /**
+     * @param typesTtl - time in milliseconds, how long the folder types and
+     * the location of the configuration folder are used, 0 disables the
+     * caching
+     * @param rightsTtl - time in milliseconds, how long the rights on shared
+     * folders are used, 0 disables the caching
+     * @param file - file in which the cache is persisted, can be null
+     */
+    public FolderMetadataCache(long typesTtl, long rightsTtl, File file) {
+        if (typesTtl < 0 || rightsTtl < 0) {
+            throw new IllegalArgumentException("The time to live must not be negative, but was " + typesTtl + " and " + rightsTtl);
+        }
+        this.typesTtl = typesTtl;
+        this.rightsTtl = rightsTtl;
+        this.file = file;
+    }
+
+    public long getTypesTtl() {
+        return typesTtl;
+    }
+
+    public long getRightsTtl() {
+        return rightsTtl;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Removes all entries of all accounts
+     */
+    public synchronized void invalidate() {
+        entries = new HashMap<String, Entries>();
+        changed = true;
+    }
+
+    /**
+     * Removes the folder types and the location of the configuration folder
+     * of the account, e.g. after folders were created by another client
+     *
+     * @param account
+     */
+    public synchronized void invalidateFolderTypes(AccountInformation account) {
+        Entries accountEntries = getEntries(account, false);
+        if (accountEntries != null) {
+            accountEntries.folderTypes = null;
+            accountEntries.configurationFolderName = null;
+            changed = true;
+        }
+    }
+
+    /**
+     * Removes the rights of the account on the given folder
+     *
+     * @param account
+     * @param folderName
+     */
+    public synchronized void invalidateRights(AccountInformation account, String folderName) {
+        Entries accountEntries = getEntries(account, false);
+        if (accountEntries != null && accountEntries.rights.remove(folderName) != null) {
+            changed = true;
+        }
+    }
+
+    /**
+     * Returns the cached folder types of the account
+     *
+     * @param account
+     * @return FolderDiscovery or null, if there are no valid cached types
+     */
+    synchronized FolderDiscovery getFolderDiscovery(AccountInformation account) {
+        Entries accountEntries = getEntries(account, false);
+        if (accountEntries == null || accountEntries.folderTypes == null || isExpired(accountEntries.typesTime, typesTtl)) {
+            return null;
+        }
+        return new FolderDiscovery(new LinkedHashMap<String, String>(accountEntries.folderTypes), true);
+    }
+
+    /**
+     * Caches the discovered folder types, incomplete discoveries are not
+     * cached
+     *
+     * @param account
+     * @param discovery
+     */
+    synchronized void putFolderDiscovery(AccountInformation account, FolderDiscovery discovery) {
+        if (typesTtl == 0 || !discovery.isComplete()) {
+            return;
+        }
+        Entries accountEntries = getEntries(account, true);
+        accountEntries.folderTypes = new LinkedHashMap<String, String>(discovery.getFolderTypes());
+        accountEntries.typesTime = System.currentTimeMillis();
+        changed = true;
+    }
+
+    /**
+     * Returns the cached full name of the configuration folder
+     *
+     * @param account
+     * @return String, an empty String if there is no configuration folder, or
+     * null if the location is not cached
+     */
+    synchronized String getConfigurationFolderName(AccountInformation account) {
+        Entries accountEntries = getEntries(account, false);
+        if (accountEntries == null || accountEntries.configurationFolderName == null || isExpired(accountEntries.configurationTime, typesTtl)) {
+            return null;
+        }
+        return accountEntries.configurationFolderName;
+    }
+
+    /**
+     * @param account
+     * @param folderName - full name of the configuration folder, or an empty
+     * String if there is none
+     */
+    synchronized void putConfigurationFolderName(AccountInformation account, String folderName) {
+        if (typesTtl == 0) {
+            return;
+        }
+        Entries accountEntries = getEntries(account, true);
+        accountEntries.configurationFolderName = folderName;
+        accountEntries.configurationTime = System.currentTimeMillis();
+        changed = true;
+    }
+
+    /**
+     * Returns the cached rights of the account on the given shared folder
+     *
+     * @param account
+     * @param folderName
+     * @return Rights or null, if there are no valid cached rights
+     */
+    synchronized Rights getRights(AccountInformation account, String folderName) {
+        Entries accountEntries = getEntries(account, false);
+        if (accountEntries == null) {
+            return null;
+        }
+        Rights rights = accountEntries.rights.get(folderName);
+        if (rights == null || isExpired(rights.time, rightsTtl)) {
+            return null;
+        }
+        return rights;
+    }
+
+    synchronized void putRights(AccountInformation account, String folderName, boolean noteCreationAllowed, boolean noteModificationAllowed) {
+        if (rightsTtl == 0) {
+            return;
+        }
+        getEntries(account, true).rights.put(folderName, new Rights(noteCreationAllowed, noteModificationAllowed, System.currentTimeMillis()));
+        changed = true;
+    }
+
+    /**
+     * Writes the cache to the file, if there is one and something was changed.
+     * Like the SyncStateStore, a temporary file is written first.
+     *
+     * @throws IOException
+     */
+    synchronized void save() throws IOException {
+        if (file == null || !changed) {
+            return;
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+
+        File tmp = new File(parent, file.getName() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeObject(entries);
+        } finally {
+            out.close();
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to rename " + tmp + " to " + file);
+        }
+        changed = false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() {
+        entries = new HashMap<String, Entries>();
+        if (file == null || !file.isFile()) {
+            return;
+        }
+
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                entries = (HashMap<String, Entries>) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            //the cache is not readable anymore, e.g. after an update of the library, so the metadata is discovered again
+        } catch (ClassNotFoundException e) {
+            //same as above
+        } catch (ClassCastException e) {
+            //same as above
+        }
+    }
+
+    private Entries getEntries(AccountInformation account, boolean create) {
+        if (entries == null) {
+            load();
+        }
+
+        String owner = account.getUsername() + "@" + account.getHost() + ":" + account.getPort();
+        Entries accountEntries = entries.get(owner);
+        if (accountEntries == null && create) {
+            accountEntries = new Entries();
+            entries.put(owner, accountEntries);
+        }
+        return accountEntries;
+    }
+
+    private static boolean isExpired(long time, long ttl) {
+        return System.currentTimeMillis() - time >= ttl;
+    }
+
+    static class Entries implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private LinkedHashMap<String, String> folderTypes;
+        private long typesTime;
+        private String configurationFolderName;
+        private long configurationTime;
+        private final HashMap<String, Rights> rights = new HashMap<String, Rights>();
+    }
+
+    static class Rights implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean noteCreationAllowed;
+        private final boolean noteModificationAllowed;
+        private final long time;
+
+        Rights(boolean noteCreationAllowed, boolean noteModificationAllowed, long time) {
+            this.noteCreationAllowed = noteCreationAllowed;
+            this.noteModificationAllowed = noteModificationAllowed;
+            this.time = time;
+        }
+
+        boolean isNoteCreationAllowed() {
+            return noteCreationAllowed;
+        }
+
+        boolean isNoteModificationAllowed() {
+            return noteModificationAllowed;
+        }
+    }
+}
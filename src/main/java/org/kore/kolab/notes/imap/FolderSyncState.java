@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Remembers what is known about an IMAP folder after the last sync, so that
+ * the next sync just has to transfer the differences
+ *
+ * @author Konrad Renner
+ */
+public class FolderSyncState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final long UNKNOWN = -1;
+
+    private final String folderName;
+    private final String notebookUid;
+    private final boolean shared;
+    private final long uidValidity;
+    private long highestModSeq;
+    private long uidNext;
+    //Key is the IMAP UID of the message
+    private final Map<Long, SyncedMessage> notesPerMessage;
+    //Index from the note UID to the highest IMAP UID of its messages, is built again after deserialization
+    private transient Map<String, Long> messagePerNote;
+
+    public FolderSyncState(String folderName, String notebookUid, boolean shared, long uidValidity) {
+        this.folderName = folderName;
+        this.notebookUid = notebookUid;
+        this.shared = shared;
+        this.uidValidity = uidValidity;
+        this.highestModSeq = UNKNOWN;
+        this.uidNext = UNKNOWN;
+        this.notesPerMessage = new TreeMap<Long, SyncedMessage>();
+    }
+
+    public String getFolderName() {
+        return folderName;
+    }
+
+    public String getNotebookUid() {
+        return notebookUid;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+    public void setHighestModSeq(long highestModSeq) {
+        this.highestModSeq = highestModSeq;
+    }
+
+    public boolean isModSeqKnown() {
+        return highestModSeq > 0;
+    }
+
+    public long getUidNext() {
+        return uidNext;
+    }
+
+    public void setUidNext(long uidNext) {
+        this.uidNext = uidNext;
+    }
+
+    public boolean isUidNextKnown() {
+        return uidNext > 0;
+    }
+
+    /**
+     * Remembers the note which is stored in the message with the given IMAP
+     * UID. If a note is stored in more than one message, e.g. because the
+     * old message of an update is not expunged yet, the message with the
+     * highest UID is the one of the note.
+     *
+     * @param messageUid
+     * @param noteUid
+     * @param contentHash - hash of the Kolab XML of the message, null if the
+     * note was not loaded
+     */
+    public void putNote(long messageUid, String noteUid, String contentHash) {
+        SyncedMessage old = notesPerMessage.put(messageUid, new SyncedMessage(noteUid, contentHash));
+        Map<String, Long> index = getIndex();
+        if (old != null && !old.noteUid.equals(noteUid)) {
+            removeFromIndex(old.noteUid, messageUid);
+        }
+
+        Long indexed = index.get(noteUid);
+        if (indexed == null || indexed <= messageUid) {
+            index.put(noteUid, messageUid);
+        }
+    }
+
+    /**
+     * Removes the message with the given IMAP UID
+     *
+     * @param messageUid
+     * @return the UID of the note which was stored in the message, or null
+     */
+    public String removeMessage(long messageUid) {
+        SyncedMessage removed = notesPerMessage.remove(messageUid);
+        if (removed == null) {
+            return null;
+        }
+
+        removeFromIndex(removed.noteUid, messageUid);
+        return removed.noteUid;
+    }
+
+    private void removeFromIndex(String noteUid, long messageUid) {
+        Map<String, Long> index = getIndex();
+        if (!Long.valueOf(messageUid).equals(index.get(noteUid))) {
+            return;
+        }
+        index.remove(noteUid);
+
+        //maybe the note is stored in another message too
+        for (Map.Entry<Long, SyncedMessage> entry : notesPerMessage.entrySet()) {
+            if (entry.getValue().noteUid.equals(noteUid)) {
+                //the messages are sorted, so the last one has the highest UID
+                index.put(noteUid, entry.getKey());
+            }
+        }
+    }
+
+    public String getNoteUid(long messageUid) {
+        SyncedMessage message = notesPerMessage.get(messageUid);
+        return message == null ? null : message.noteUid;
+    }
+
+    public String getContentHash(long messageUid) {
+        SyncedMessage message = notesPerMessage.get(messageUid);
+        return message == null ? null : message.contentHash;
+    }
+
+    /**
+     * Searches the IMAP UID of the message which contains the note with the
+     * given UID
+     *
+     * @param noteUid
+     * @return the IMAP UID or UNKNOWN
+     */
+    public long getMessageUid(String noteUid) {
+        Long messageUid = getIndex().get(noteUid);
+        return messageUid == null ? UNKNOWN : messageUid;
+    }
+
+    /**
+     * @return Map with the note UIDs as key and the IMAP UIDs as value
+     */
+    public Map<String, Long> getMessageUidsPerNote() {
+        return new HashMap<String, Long>(getIndex());
+    }
+
+    private Map<String, Long> getIndex() {
+        if (messagePerNote == null) {
+            messagePerNote = new HashMap<String, Long>();
+            for (Map.Entry<Long, SyncedMessage> entry : notesPerMessage.entrySet()) {
+                messagePerNote.put(entry.getValue().noteUid, entry.getKey());
+            }
+        }
+        return messagePerNote;
+    }
+
+    public boolean containsMessage(long messageUid) {
+        return notesPerMessage.containsKey(messageUid);
+    }
+
+    public Set<Long> getMessageUids() {
+        return Collections.unmodifiableSet(notesPerMessage.keySet());
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 5;
+        hash = 37 * hash + (this.folderName != null ? this.folderName.hashCode() : 0);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final FolderSyncState other = (FolderSyncState) obj;
+        if ((this.folderName == null) ? (other.folderName != null) : !this.folderName.equals(other.folderName)) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "FolderSyncState{" + "folderName=" + folderName + ", notebookUid=" + notebookUid + ", shared=" + shared + ", uidValidity=" + uidValidity + ", highestModSeq=" + highestModSeq + ", uidNext=" + uidNext + ", messages=" + notesPerMessage.size() + '}';
+    }
+
+    static class SyncedMessage implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String noteUid;
+        private final String contentHash;
+
+        SyncedMessage(String noteUid, String contentHash) {
+            this.noteUid = noteUid;
+            this.contentHash = contentHash;
+        }
+    }
+}
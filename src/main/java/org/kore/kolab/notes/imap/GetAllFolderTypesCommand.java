@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BASE64MailboxDecoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Gets the Kolab folder types of all folders of an account with one
+ * GETANNOTATION command and the mailbox pattern "*", instead of one command
+ * per folder
+ *
+ * @author Konrad Renner
+ */
+public class GetAllFolderTypesCommand implements IMAPFolder.ProtocolCommand {
+
+    static final String FOLDER_TYPE = "/vendor/kolab/folder-type";
+
+    private final Map<String, String> folderTypes;
+
+    public GetAllFolderTypesCommand() {
+        this.folderTypes = new LinkedHashMap<String, String>();
+    }
+
+    @Override
+    public Object doCommand(IMAPProtocol imapp) throws ProtocolException {
+        Argument command = new Argument();
+        command.writeString("*");
+        command.writeNString(FOLDER_TYPE);
+        command.writeString("*");
+
+        Response[] response = imapp.command("GETANNOTATION", command);
+        imapp.notifyResponseHandlers(response);
+        //servers which do not accept the pattern must be asked per folder
+        imapp.handleResult(response[response.length - 1]);
+
+        for (int i = 0; i < response.length; i++) {
+            if (response[i] instanceof IMAPResponse && ((IMAPResponse) response[i]).keyEquals("ANNOTATION")) {
+                readAnnotation(response[i]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the folder type from an ANNOTATION response, whose key was read
+     * already, e.g. "Notes" "/vendor/kolab/folder-type" ("value.shared"
+     * "note")
+     */
+    void readAnnotation(Response response) {
+        String mailbox = response.readAtomString();
+        String entry = response.readAtomString();
+        String type = readValue(response);
+
+        if (mailbox != null && FOLDER_TYPE.equals(entry) && type != null) {
+            folderTypes.put(BASE64MailboxDecoder.decode(mailbox), type);
+        }
+    }
+
+    /**
+     * Reads the first value from the attribute list, e.g. ("value.priv"
+     * "note.default" "value.shared" NIL)
+     */
+    static String readValue(Response response) {
+        response.skipSpaces();
+        if (response.readByte() != '(') {
+            return null;
+        }
+
+        String value = null;
+        while (true) {
+            response.skipSpaces();
+            if (response.peekByte() == ')') {
+                break;
+            }
+
+            String attribute = response.readString();
+            if (attribute == null) {
+                //malformed or end of the response
+                break;
+            }
+
+            String attributeValue = response.readString();
+            if (value == null && attribute.startsWith("value.")) {
+                value = attributeValue;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns the types of the folders, the key is the full name of the folder
+     *
+     * @return Map
+     */
+    public Map<String, String> getFolderTypes() {
+        return folderTypes;
+    }
+}
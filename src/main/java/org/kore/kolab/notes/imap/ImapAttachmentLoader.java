@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.kore.kolab.notes.Attachment;
+
+/**
+ * Loads the data of an attachment on demand from its body part on the IMAP
+ * server. The position of the body part is serialized with the attachment, so
+ * the repository must be bound again after deserialization.
+ *
+ * @author Konrad Renner
+ */
+class ImapAttachmentLoader implements Attachment.Loader {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String folderName;
+    private final long uidValidity;
+    private final long messageUid;
+    private final String section;
+    private final String encoding;
+    private transient ImapNotesRepository repository;
+
+    ImapAttachmentLoader(ImapNotesRepository repository, String folderName, long uidValidity, long messageUid, String section, String encoding) {
+        this.repository = repository;
+        this.folderName = folderName;
+        this.uidValidity = uidValidity;
+        this.messageUid = messageUid;
+        this.section = section;
+        this.encoding = encoding;
+    }
+
+    void bind(ImapNotesRepository repository) {
+        this.repository = repository;
+    }
+
+    String getFolderName() {
+        return folderName;
+    }
+
+    long getUidValidity() {
+        return uidValidity;
+    }
+
+    long getMessageUid() {
+        return messageUid;
+    }
+
+    String getSection() {
+        return section;
+    }
+
+    String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @param folderName
+     * @param messageUid
+     * @return true, if the body part belongs to the given message
+     */
+    boolean refersTo(String folderName, long messageUid) {
+        return this.messageUid == messageUid && this.folderName.equals(folderName);
+    }
+
+    /**
+     * @return key, which identifies the body part on the server
+     */
+    String getKey() {
+        return folderName + "/" + uidValidity + "/" + messageUid + "/" + section;
+    }
+
+    @Override
+    public byte[] load(Attachment attachment) throws IOException {
+        if (repository == null) {
+            throw new IOException("The loader of attachment " + attachment.getId() + " is not bound to a repository");
+        }
+        return repository.loadAttachment(this);
+    }
+
+    @Override
+    public InputStream open(Attachment attachment) throws IOException {
+        if (repository == null) {
+            throw new IOException("The loader of attachment " + attachment.getId() + " is not bound to a repository");
+        }
+        return repository.openAttachment(this);
+    }
+
+    @Override
+    public boolean isCaching() {
+        return repository != null && repository.getAttachmentCache() != null;
+    }
+}
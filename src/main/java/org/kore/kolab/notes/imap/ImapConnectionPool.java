@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.imap.IMAPStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import korex.mail.MessagingException;
+import korex.mail.Session;
+import korex.mail.Store;
+import org.kore.kolab.notes.AccountInformation;
+
+/**
+ * Pool of authenticated IMAP connections for one account, so that not every
+ * remote operation has to pay for the TLS handshake and the LOGIN. Idle
+ * connections are kept alive with NOOP and checked before they are borrowed
+ * again.
+ *
+ * @author Konrad Renner
+ */
+public class ImapConnectionPool {
+
+    public static final int DEFAULT_SIZE = 2;
+    public static final long DEFAULT_KEEP_ALIVE_INTERVAL = 5 * 60 * 1000;
+    //connections which were idle for a shorter time are borrowed without a health check
+    static final long HEALTH_CHECK_INTERVAL = 30 * 1000;
+
+    private final AccountInformation account;
+    private final int size;
+    private final long keepAliveInterval;
+    private final LinkedList<IdleStore> idle;
+    private int borrowed;
+    //idle connections, which are checked by the keep alive at the moment
+    private int checking;
+    private boolean closed;
+    private Session session;
+    private String protocol;
+    private Timer keepAliveTimer;
+
+    public ImapConnectionPool(AccountInformation account) {
+        this(account, DEFAULT_SIZE, DEFAULT_KEEP_ALIVE_INTERVAL);
+    }
+
+    /**
+     * @param account
+     * @param size - maximum number of connections, which can be borrowed at
+     * the same time
+     * @param keepAliveInterval - interval in milliseconds in which a NOOP is
+     * sent to idle connections
+     */
+    public ImapConnectionPool(AccountInformation account, int size, long keepAliveInterval) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The size of the pool must be at least 1, but was " + size);
+        }
+        this.account = account;
+        this.size = size;
+        this.keepAliveInterval = keepAliveInterval;
+        this.idle = new LinkedList<IdleStore>();
+    }
+
+    public AccountInformation getAccount() {
+        return account;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    public synchronized int getBorrowedCount() {
+        return borrowed;
+    }
+
+    /**
+     * Returns a connected store. If all connections are borrowed, the method
+     * waits until one is released.
+     *
+     * @return Store
+     * @throws MessagingException - if no connection could be established
+     */
+    public Store borrow() throws MessagingException {
+        return borrow(true);
+    }
+
+    /**
+     * Returns a connected store, if one is idle or can be connected without
+     * waiting for a release. Background tasks use this method, so that they
+     * do not block the other operations.
+     *
+     * @return Store or null, if all connections are borrowed
+     * @throws MessagingException - if no connection could be established
+     */
+    public Store tryBorrow() throws MessagingException {
+        return borrow(false);
+    }
+
+    private Store borrow(boolean wait) throws MessagingException {
+        while (true) {
+            IdleStore candidate;
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        throw new MessagingException("The connection pool is closed");
+                    }
+
+                    candidate = idle.poll();
+                    if (candidate != null || borrowed + checking < size) {
+                        borrowed++;
+                        break;
+                    } else if (!wait) {
+                        return null;
+                    }
+
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new MessagingException("Interrupted while waiting for a connection", e);
+                    }
+                }
+            }
+
+            if (candidate == null) {
+                //connecting is done without holding the lock, so that other threads can release connections in the meantime
+                try {
+                    return createStore();
+                } catch (MessagingException e) {
+                    giveBack();
+                    throw e;
+                } catch (RuntimeException e) {
+                    giveBack();
+                    throw e;
+                }
+            }
+
+            //the health check is a round trip to the server, so it is done without holding the lock too
+            if (System.currentTimeMillis() - candidate.since < HEALTH_CHECK_INTERVAL || isHealthy(candidate.store)) {
+                return candidate.store;
+            }
+            closeQuietly(candidate.store);
+            giveBack();
+        }
+    }
+
+    /**
+     * Gives a borrowed store back to the pool. After the pool was closed, the
+     * store is closed. The connection is not checked here, because that is a
+     * round trip to the server; idle connections are checked by the keep
+     * alive and before they are borrowed again.
+     *
+     * @param store
+     */
+    public void release(Store store) {
+        if (store == null) {
+            return;
+        }
+
+        boolean discard;
+        synchronized (this) {
+            discard = closed;
+            if (!discard) {
+                idle.addFirst(new IdleStore(store));
+                startKeepAlive();
+            }
+            giveBack();
+        }
+
+        if (discard) {
+            closeQuietly(store);
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops the keep alive. Borrowed
+     * connections are closed, when they are released. A closed pool can not
+     * be used anymore.
+     */
+    public void close() {
+        List<IdleStore> stores;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            if (keepAliveTimer != null) {
+                keepAliveTimer.cancel();
+                keepAliveTimer = null;
+            }
+
+            stores = new ArrayList<IdleStore>(idle);
+            idle.clear();
+        }
+
+        for (IdleStore store : stores) {
+            closeQuietly(store.store);
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    void keepAlive() {
+        List<IdleStore> stores;
+        synchronized (this) {
+            stores = new ArrayList<IdleStore>(idle);
+            idle.clear();
+            checking += stores.size();
+        }
+
+        //the NOOPs are sent without holding the lock, so that a hanging connection does not block the pool
+        List<IdleStore> healthy = new ArrayList<IdleStore>(stores.size());
+        for (IdleStore store : stores) {
+            if (isHealthy(store.store)) {
+                healthy.add(store);
+            } else {
+                closeQuietly(store.store);
+            }
+        }
+
+        synchronized (this) {
+            checking -= stores.size();
+            for (IdleStore store : healthy) {
+                if (closed) {
+                    closeQuietly(store.store);
+                } else {
+                    idle.addLast(store);
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Opens a new connection, which is not managed by the pool. The session,
+     * which was successfully used for the first connection, is reused for
+     * all further connections.
+     *
+     * @return Store
+     * @throws MessagingException
+     */
+    Store createStore() throws MessagingException {
+        Session lsession;
+        String lprotocol;
+        synchronized (this) {
+            lsession = session;
+            lprotocol = protocol;
+        }
+
+        IMAPStore store;
+        if (lsession == null) {
+            Properties props = new Properties();
+            //TODO refactor with an ssl trust store
+            if (account.isSSLEnabled()) {
+                props.put("mail.imaps.ssl.trust", "*");
+            }
+            lsession = Session.getInstance(props, null);
+            lprotocol = account.isSSLEnabled() ? "imaps" : "imap";
+
+            try {
+                store = connect(lsession, lprotocol);
+            } catch (MessagingException e) {
+                //try using starttls
+                if (!account.isSSLEnabled()) {
+                    throw e;
+                }
+                props = new Properties();
+                props.put("mail.imap.ssl.trust", "*");
+                //try to use starttls
+                props.put("mail.imap.starttls.enable", "true");
+                props.put("mail.imap.ssl.protocols", "TLSv1 TLSv1.1 TLSv1.2");
+
+                lsession = Session.getInstance(props, null);
+                lprotocol = "imap";
+                store = connect(lsession, lprotocol);
+            }
+
+            synchronized (this) {
+                session = lsession;
+                protocol = lprotocol;
+            }
+        } else {
+            store = connect(lsession, lprotocol);
+        }
+
+        //Because of a hint from Aaron Seigo on G+, maybe they are using a filter in near future on the server, so that just "Kolabclients" can see Groupware folders
+        if (account.isFolderAnnotationEnabled()) {
+            Map<String, String> clientParams = new HashMap<String, String>();
+            clientParams.put("name", "/Kolabnotes-java");
+            clientParams.put("version", "3.3.4");
+            clientParams.put("os", System.getProperty("os.name"));
+            clientParams.put("support-url", "https://github.com/konradrenner/kolabnotes-java/issues");
+            clientParams.put("os-version", System.getProperty("os.version"));
+            clientParams.put("vendor", "kolabnotes-java");
+            clientParams.put("environment", System.getProperty("java.vendor") + "; Java " + System.getProperty("java.version") + "; " + System.getProperty("java.vendor.url"));
+
+            store.id(clientParams);
+        }
+
+        return store;
+    }
+
+    private IMAPStore connect(Session session, String protocol) throws MessagingException {
+        IMAPStore store = (IMAPStore) session.getStore(protocol);
+        store.connect(account.getHost(), account.getPort(), account.getUsername(), account.getPassword());
+        return store;
+    }
+
+    private synchronized void giveBack() {
+        borrowed--;
+        notifyAll();
+    }
+
+    private void startKeepAlive() {
+        if (keepAliveTimer != null || keepAliveInterval <= 0) {
+            return;
+        }
+
+        keepAliveTimer = new Timer("IMAP keep alive " + account.getHost(), true);
+        keepAliveTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                keepAlive();
+            }
+        }, keepAliveInterval, keepAliveInterval);
+    }
+
+    static boolean isHealthy(Store store) {
+        //IMAPStore sends a NOOP to the server to check the connection
+        return store.isConnected();
+    }
+
+    static void closeQuietly(Store store) {
+        try {
+            store.close();
+        } catch (MessagingException e) {
+            //the connection is discarded anyway
+        }
+    }
+
+    static class IdleStore {
+
+        private final Store store;
+        private final long since;
+
+        IdleStore(Store store) {
+            this.store = store;
+            this.since = System.currentTimeMillis();
+        }
+    }
+}
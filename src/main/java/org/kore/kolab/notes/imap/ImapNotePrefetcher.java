@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import korex.mail.Store;
+import org.kore.kolab.notes.Note;
+import org.kore.kolab.notes.RemoteNotesRepository;
+
+/**
+ * Loads unloaded notes in the background. The notes are queued by priority:
+ * notes which were requested explicitly first, then the most recently
+ * modified ones. Every worker takes a batch from the queue and loads it with a
+ * connection, which is free in the pool, so that the other operations of the
+ * repository are not blocked. The transfered bytes can be limited.
+ *
+ * @author Konrad Renner
+ */
+class ImapNotePrefetcher {
+
+    static final int DEFAULT_BATCH_SIZE = 25;
+    //wait time, if all connections of the pool are borrowed
+    static final long RETRY_INTERVAL = 1000;
+
+    private final ImapNotesRepository repository;
+    private final int batchSize;
+    private final int concurrency;
+    private final long maxBytesPerSecond;
+    private final RemoteNotesRepository.Listener[] listener;
+    private final PriorityQueue<Entry> queue;
+    private final Map<String, Entry> entries;
+    private final List<Thread> workers;
+    private long requests;
+    private volatile boolean running;
+
+    /**
+     * @param repository
+     * @param batchSize - maximum number of notes, which are loaded together
+     * @param concurrency - number of notes which are loaded at the same time
+     * @param maxBytesPerSecond - maximum bytes per second for all workers
+     * together, 0 for no limit
+     * @param listener
+     */
+    ImapNotePrefetcher(ImapNotesRepository repository, int batchSize, int concurrency, long maxBytesPerSecond, RemoteNotesRepository.Listener... listener) {
+        if (batchSize < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("The batch size and the concurrency must be at least 1, but were " + batchSize + " and " + concurrency);
+        }
+        this.repository = repository;
+        this.batchSize = batchSize;
+        this.concurrency = concurrency;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.listener = listener;
+        this.queue = new PriorityQueue<Entry>();
+        this.entries = new HashMap<String, Entry>();
+        this.workers = new ArrayList<Thread>();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    synchronized void start(Collection<Note> notes) {
+        enqueue(notes);
+        running = true;
+        for (int i = 0; i < concurrency; i++) {
+            Thread worker = new Thread(new Worker(), "Note prefetch " + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    synchronized void stop() {
+        running = false;
+        queue.clear();
+        entries.clear();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        workers.clear();
+        notifyAll();
+    }
+
+    /**
+     * Queues all unloaded notes of the given ones, which are not queued
+     * already
+     *
+     * @param notes
+     */
+    synchronized void enqueue(Collection<Note> notes) {
+        for (Note note : notes) {
+            String uid = note.getIdentification().getUid();
+            if (!repository.noteCompletelyLoaded(note) && !entries.containsKey(uid)) {
+                add(new Entry(uid, note.getAuditInformation().getLastModificationDate().getTime(), 0));
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Moves the note to the head of the queue
+     *
+     * @param note
+     */
+    synchronized void prioritize(Note note) {
+        String uid = note.getIdentification().getUid();
+        remove(uid);
+        add(new Entry(uid, note.getAuditInformation().getLastModificationDate().getTime(), ++requests));
+        notifyAll();
+    }
+
+    synchronized void remove(String uid) {
+        Entry entry = entries.remove(uid);
+        if (entry != null) {
+            queue.remove(entry);
+        }
+    }
+
+    synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Takes the next batch from the queue and waits, if the queue is empty
+     *
+     * @return List of note UIDs, empty if the prefetcher was stopped
+     * @throws InterruptedException
+     */
+    synchronized List<String> takeBatch() throws InterruptedException {
+        while (running && queue.isEmpty()) {
+            wait();
+        }
+        return running ? pollBatch() : new ArrayList<String>();
+    }
+
+    /**
+     * Takes the next batch from the queue without waiting
+     *
+     * @return List of note UIDs in the order of their priority
+     */
+    synchronized List<String> pollBatch() {
+        List<String> batch = new ArrayList<String>();
+        while (batch.size() < batchSize && !queue.isEmpty()) {
+            Entry entry = queue.poll();
+            entries.remove(entry.noteUid);
+            batch.add(entry.noteUid);
+        }
+        return batch;
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.noteUid, entry);
+        queue.add(entry);
+    }
+
+    /**
+     * Waits as long as needed, so that the worker does not exceed its part of
+     * the bandwidth
+     *
+     * @param bytes - bytes which were transfered
+     * @param duration - milliseconds which the transfer took
+     * @throws InterruptedException
+     */
+    void throttle(long bytes, long duration) throws InterruptedException {
+        long minDuration = getMinDuration(bytes, concurrency, maxBytesPerSecond);
+        if (minDuration > duration) {
+            Thread.sleep(minDuration - duration);
+        }
+    }
+
+    /**
+     * @param bytes - bytes which were transfered
+     * @param concurrency - number of workers, which share the bandwidth
+     * @param maxBytesPerSecond - 0 for no limit
+     * @return milliseconds which the transfer of one worker must take at
+     * least
+     */
+    static long getMinDuration(long bytes, int concurrency, long maxBytesPerSecond) {
+        if (maxBytesPerSecond <= 0) {
+            return 0;
+        }
+        return bytes * 1000 * concurrency / maxBytesPerSecond;
+    }
+
+    /**
+     * Loads the notes of the batch. The notes are collected before a
+     * connection is borrowed and filled after it was released, so that the
+     * worker never waits for the lock of the repository while it holds a
+     * connection, which an operation with the lock could wait for.
+     *
+     * @param batch
+     * @throws InterruptedException
+     */
+    void load(List<String> batch) throws InterruptedException {
+        ImapConnectionPool pool = repository.getConnectionPool();
+        Store store = null;
+        try {
+            ImapNotesRepository.UnloadedNotes notes = repository.findUnloadedNotes(batch);
+            if (notes.isEmpty()) {
+                return;
+            }
+
+            while (running && (store = pool.tryBorrow()) == null) {
+                Thread.sleep(RETRY_INTERVAL);
+            }
+            if (store == null) {
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            repository.loadUnloadedNotes(store, notes, null);
+            long duration = System.currentTimeMillis() - start;
+            pool.release(store);
+            store = null;
+
+            repository.fillLoadedNotes(notes, listener);
+            throttle(notes.getBytes(), duration);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            //the notes of the batch are loaded on their first access then
+            if (running) {
+                for (RemoteNotesRepository.Listener listen : listener) {
+                    listen.onFolderSyncException("Prefetch", e);
+                }
+            }
+        } finally {
+            pool.release(store);
+        }
+    }
+
+    class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    List<String> batch = takeBatch();
+                    if (!batch.isEmpty()) {
+                        load(batch);
+                    }
+                }
+            } catch (InterruptedException e) {
+                //stopped
+            }
+        }
+    }
+
+    static class Entry implements Comparable<Entry> {
+
+        private final String noteUid;
+        private final long modificationTime;
+        //0 for notes which were not requested, otherwise a higher number for later requests
+        private final long request;
+
+        Entry(String noteUid, long modificationTime, long request) {
+            this.noteUid = noteUid;
+            this.modificationTime = modificationTime;
+            this.request = request;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            if (request != o.request) {
+                return request > o.request ? -1 : 1;
+            }
+            if (modificationTime != o.modificationTime) {
+                return modificationTime > o.modificationTime ? -1 : 1;
+            }
+            return noteUid.compareTo(o.noteUid);
+        }
+    }
+}
@@ -5,26 +5,48 @@
  */
 package org.kore.kolab.notes.imap;
 
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.imap.AppendUID;
 import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPInputStream;
+import com.sun.mail.imap.IMAPMessage;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.sql.Timestamp;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import korex.activation.DataHandler;
 import korex.mail.BodyPart;
 import korex.mail.FetchProfile;
-import korex.mail.Flags;
 import korex.mail.Folder;
 import static korex.mail.Folder.READ_ONLY;
 import static korex.mail.Folder.READ_WRITE;
@@ -34,13 +56,19 @@ import korex.mail.Multipart;
 import korex.mail.NoSuchProviderException;
 import korex.mail.Session;
 import korex.mail.Store;
+import korex.mail.UIDFolder;
+import korex.mail.event.MailEvent;
 import korex.mail.internet.InternetAddress;
+import korex.mail.internet.MailDateFormat;
 import korex.mail.internet.MimeBodyPart;
 import korex.mail.internet.MimeMessage;
 import korex.mail.internet.MimeMultipart;
+import korex.mail.internet.MimeUtility;
 import org.kore.kolab.notes.AccountInformation;
 import org.kore.kolab.notes.Attachment;
 import org.kore.kolab.notes.AuditInformation;
+import org.kore.kolab.notes.ContentHash;
+import org.kore.kolab.notes.ContentPool;
 import org.kore.kolab.notes.Identification;
 import org.kore.kolab.notes.KolabParser;
 import org.kore.kolab.notes.Note;
@@ -57,6 +85,14 @@ import org.kore.kolab.notes.local.LocalNotesRepository;
 public class ImapNotesRepository extends LocalNotesRepository implements RemoteNotesRepository {
 
     final static String NOT_LOADED = "NOT_LOADED";
+    //minimum number of notes, which are parsed with more than one thread
+    final static int PARALLEL_PARSE_THRESHOLD = 8;
+    final static int DEFAULT_REFRESH_CHUNK_SIZE = 500;
+    final static long DEFAULT_REFRESH_MEMORY_BUDGET = 32 * 1024 * 1024;
+    final static int MIN_CHUNK_SIZE = 16;
+    //estimated memory for the envelope, the flags and the structure of a message
+    final static int MESSAGE_OVERHEAD = 2048;
+    private final static Charset UTF8 = Charset.forName("UTF-8");
     final static String KOLAB_TEXT = "This is a Kolab Groupware object.\n"
             + "To view this object you will need a Kolab Groupware Client.\n"
             + "For a list of Kolab Groupware Clients please visit:\n"
@@ -65,14 +101,43 @@ public class ImapNotesRepository extends LocalNotesRepository implements RemoteN
     private final AccountInformation account;
     private final KolabParser configurationParser;
     private RemoteTags remoteTags;
+    private FolderMetadataCache folderMetadataCache;
     private Base64Coder coder;
-    private final Map<String, Message> messageCache;
+    //positions of the messages of the notes, key is the note UID
+    private final Map<String, MessageLocator> messageLocators;
+    //Key is the full name of the IMAP folder
+    private final Map<String, FolderSyncState> syncStates;
+    private SyncStateStore syncStateStore;
+    private ImapConnectionPool connectionPool;
+    //Folders which were opened during the actual remote operation
+    private final List<Folder> openedFolders;
+    private int refreshParallelism;
+    private int refreshChunkSize;
+    private long refreshMemoryBudget;
+    private final AtomicLong lastNotebookUid;
+    private ImapPushWatcher pushWatcher;
+    //Folders with push notifications, which were not loaded because of local changes
+    private final Set<String> deferredPushFolders;
+    private volatile ImapNotePrefetcher prefetcher;
+    private AttachmentStorage attachmentCache;
+    //Store which the current thread borrowed for a remote operation
+    private final ThreadLocal<Store> activeStore;
 
     public ImapNotesRepository(KolabParser parser, AccountInformation account, String rootFolder, KolabParser configurationParser) {
         super(parser, rootFolder);
         this.account = account;
         this.configurationParser = configurationParser;
-        this.messageCache = new HashMap<String, Message>();
+        this.messageLocators = Collections.synchronizedMap(new HashMap<String, MessageLocator>());
+        this.syncStates = Collections.synchronizedMap(new HashMap<String, FolderSyncState>());
+        this.connectionPool = new ImapConnectionPool(account);
+        this.openedFolders = Collections.synchronizedList(new ArrayList<Folder>());
+        this.refreshParallelism = 1;
+        this.refreshChunkSize = DEFAULT_REFRESH_CHUNK_SIZE;
+        this.refreshMemoryBudget = DEFAULT_REFRESH_MEMORY_BUDGET;
+        this.lastNotebookUid = new AtomicLong();
+        this.activeStore = new ThreadLocal<Store>();
+        this.folderMetadataCache = new FolderMetadataCache();
+        this.deferredPushFolders = new LinkedHashSet<String>();
     }
 
     @Override
@@ -84,6 +149,114 @@ public class ImapNotesRepository extends LocalNotesRepository implements RemoteN
         return remoteTags;
     }
 
+    /**
+     * Sets a store, where the sync state and a copy of the notes will be
+     * persisted after every refresh and sync. If the cache of the repository
+     * is empty, it will be initialized from this store and just the changes
+     * since then will be loaded from the server.
+     *
+     * @param store
+     */
+    public void setSyncStateStore(SyncStateStore store) {
+        this.syncStateStore = store;
+    }
+
+    public AttachmentStorage getAttachmentCache() {
+        return attachmentCache;
+    }
+
+    /**
+     * Attachments are loaded from the server on their first access. Without a
+     * cache, every attachment keeps its data after it was loaded. With a
+     * cache, the data is just kept in the cache, so the memory used for
+     * attachments is bounded by the cache, e.g. an AttachmentCache which
+     * spills to a DiskAttachmentStore.
+     *
+     * @param cache - can be null
+     */
+    public void setAttachmentCache(AttachmentStorage cache) {
+        this.attachmentCache = cache;
+    }
+
+    public FolderMetadataCache getFolderMetadataCache() {
+        return folderMetadataCache;
+    }
+
+    /**
+     * Sets the cache for the folder types, the location of the configuration
+     * folder and the rights on shared folders, so that they are not
+     * discovered again with every refresh, sync or merge. Default is an in
+     * memory cache with the default times to live.
+     *
+     * @param cache - can be null, then the metadata is discovered with every
+     * remote operation
+     */
+    public void setFolderMetadataCache(FolderMetadataCache cache) {
+        this.folderMetadataCache = cache;
+    }
+
+    public ImapConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Sets the pool from which the connections for all remote operations are
+     * borrowed. A pool can be shared between repositories of the same
+     * account.
+     *
+     * @param pool
+     */
+    public void setConnectionPool(ImapConnectionPool pool) {
+        this.connectionPool = pool;
+    }
+
+    public int getRefreshParallelism() {
+        return refreshParallelism;
+    }
+
+    /**
+     * Sets the number of folders which are loaded at the same time during a
+     * refresh. Every folder is loaded with its own connection from the
+     * connection pool, so the size of the pool limits the parallelism too.
+     * The listeners are called from the worker threads, if the parallelism is
+     * greater than 1. fillUnloadedNotes parses the notes with the same
+     * number of threads. Default is 1.
+     *
+     * @param parallelism
+     */
+    public void setRefreshParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("The parallelism must be at least 1, but was " + parallelism);
+        }
+        this.refreshParallelism = parallelism;
+    }
+
+    public int getRefreshChunkSize() {
+        return refreshChunkSize;
+    }
+
+    public long getRefreshMemoryBudget() {
+        return refreshMemoryBudget;
+    }
+
+    /**
+     * Sets the limits for loading a folder. The messages of a folder are
+     * loaded in chunks, so that not all messages with their content are in
+     * memory at the same time. The chunks get smaller for bigger notes, so
+     * that a chunk uses at most a quarter of the memory budget.
+     *
+     * @param chunkSize - maximum number of messages of a chunk, default is 500
+     * @param memoryBudget - maximum number of bytes, which the loaded messages
+     * of a folder use at the same time, default is 32 MB
+     */
+    public void setRefreshChunking(int chunkSize, long memoryBudget) {
+        if (chunkSize < 1 || memoryBudget < 1) {
+            throw new IllegalArgumentException("The chunk size and the memory budget must be at least 1, but were " + chunkSize + " and " + memoryBudget);
+        }
+        this.refreshChunkSize = chunkSize;
+        this.refreshMemoryBudget = memoryBudget;
+    }
+
     @Override
     public void merge(Map<String, Type> eventTypes, Listener... listener) {
         eventCache.putAll(eventTypes);
@@ -96,563 +269,2846 @@ public class ImapNotesRepository extends LocalNotesRepository implements RemoteN
     }
 
     @Override
-    public void refresh(Date modificationDate, Listener... listener) {
+    public synchronized void refresh(Date modificationDate, Listener... listener) {
+        //the refresh loads all changes of the server
+        deferredPushFolders.clear();
         notesCache.clear();
         notebookCache.clear();
-        messageCache.clear();
+        messageLocators.clear();
+        syncStates.clear();
+        Store store = null;
         try {
-            Store store = openConnection(account);
+            store = borrowConnection();
+            FolderDiscovery discovery = discoverFolders(store);
 
-            remoteTags = new RemoteTags(configurationParser, account, rootfolder);
+            remoteTags = new RemoteTags(configurationParser, account, rootfolder, connectionPool);
+            remoteTags.setFolderMetadata(discovery, folderMetadataCache);
             remoteTags.init(store);
 
-            Folder rFolder = store.getFolder(rootfolder);
-            FetchProfile fetchProfile = new FetchProfile();
+            if (refreshParallelism > 1) {
+                Map<String, Boolean> notesFolders = listNotesFolders(store, discovery);
+                //the workers need the connection more than this thread
+                releaseConnection(store);
+                store = null;
 
-            rFolder.open(READ_ONLY);
-            if (account.isFolderAnnotationEnabled()) {
-                initNotesFromFolderWithAnnotationCheck(rFolder, fetchProfile, modificationDate);
+                refreshParallel(notesFolders, modificationDate, listener);
             } else {
-                initNotesFromFolder(rFolder, fetchProfile, modificationDate,false);
-            }
+                Folder rFolder = store.getFolder(rootfolder);
+                FetchProfile fetchProfile = new FetchProfile();
 
-            Folder[] allFolders = rFolder.list("*");
-
-            for (Folder folder : allFolders) {
-                folder.open(READ_ONLY);
+                openReadOnly(rFolder);
                 if (account.isFolderAnnotationEnabled()) {
-                    initNotesFromFolderWithAnnotationCheck(folder, fetchProfile, modificationDate);
+                    initNotesFromFolderWithAnnotationCheck(discovery, rFolder, fetchProfile, modificationDate, listener);
                 } else {
-                    initNotesFromFolder(folder, fetchProfile, modificationDate,false);
+                    initNotesFromFolder(rFolder, fetchProfile, modificationDate, false, listener);
                 }
+
+                Folder[] allFolders = rFolder.list("*");
+
+                for (Folder folder : allFolders) {
+                    openReadOnly(folder);
+                    if (account.isFolderAnnotationEnabled()) {
+                        initNotesFromFolderWithAnnotationCheck(discovery, folder, fetchProfile, modificationDate, listener);
+                    } else {
+                        initNotesFromFolder(folder, fetchProfile, modificationDate, false, listener);
+                    }
                 
-                for (Listener listen : listener) {
-                    listen.onSyncUpdate(folder.getFullName());
+                    for (Listener listen : listener) {
+                        listen.onSyncUpdate(folder.getFullName());
+                    }
+                    //folder.close(false);
                 }
-                //folder.close(false);
-            }
             
-            initSharedFolders(store, fetchProfile, modificationDate, account.isFolderAnnotationEnabled(), account.isSharedFoldersEnabled(), listener);
-
-            //rFolder.close(false);
-            store.close();
+                initSharedFolders(store, discovery, fetchProfile, modificationDate, account.isFolderAnnotationEnabled(), account.isSharedFoldersEnabled(), listener);
+            }
 
             eventCache.clear();
             deletedNotebookCache.clear();
             deletedNotesCache.clear();
         } catch (Exception e) {
             throw new IllegalStateException(e);
+        } finally {
+            releaseConnection(store);
         }
+
+        saveSyncState(listener);
+        schedulePrefetch();
     }
 
-    @Override
-    public SortedSet<String> getAllPossibleRootFolders() {
-        try {
-            Store store = openConnection(account);
-            Folder defaultFolder = store.getDefaultFolder();
-            Folder[] list = defaultFolder.list("%");
+    /**
+     * Loads the given folders with a thread pool, every worker uses its own
+     * connection
+     *
+     * @param notesFolders - key is the full name, value is true for shared
+     * folders
+     * @param modificationDate
+     * @param listener
+     * @throws InterruptedException
+     */
+    void refreshParallel(Map<String, Boolean> notesFolders, final Date modificationDate, final Listener... listener) throws InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Map.Entry<String, Boolean> entry : notesFolders.entrySet()) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    refreshFolder(entry.getKey(), entry.getValue(), modificationDate, listener);
+                    return null;
+                }
+            });
+        }
 
-            SortedSet<String> ret = new TreeSet<String>();
-            for (Folder folder : list) {
-                boolean isNotesFolder = true;
-                if (account.isFolderAnnotationEnabled()) {
-                    if (folder instanceof IMAPFolder) {
-                        GetMetadataCommand metadataCommand = new GetMetadataCommand(folder.getFullName());
-                        ((IMAPFolder) folder).doCommand(metadataCommand);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(refreshParallelism, Math.max(1, tasks.size())));
+        try {
+            executor.invokeAll(tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-                        //Just handle folders which contain notes
-                        isNotesFolder = metadataCommand.isNotesFolder();
-                    }
-                }
+    /**
+     * Loads one folder with its own connection. The folders which are opened
+     * by the worker are closed and removed from the opened folders, when the
+     * connection is released.
+     *
+     * @param folderName
+     * @param sharedFolder
+     * @param modificationDate
+     * @param listener
+     */
+    void refreshFolder(String folderName, boolean sharedFolder, Date modificationDate, Listener... listener) {
+        Store store = null;
+        try {
+            store = borrowConnection();
+            Folder folder = store.getFolder(folderName);
+            initFolder((IMAPFolder) folder, sharedFolder, new FetchProfile(), modificationDate, listener);
 
-                if (isNotesFolder) {
-                    ret.add(folder.getName());
-                }
+            for (Listener listen : listener) {
+                listen.onSyncUpdate(folderName);
             }
-
-            return ret;
         } catch (Exception e) {
-            throw new IllegalStateException(e);
+            //maybe the folder was removed or its rights were changed
+            invalidateFolderMetadata(folderName);
+            for (Listener listen : listener) {
+                listen.onFolderSyncException(folderName, e);
+            }
+        } finally {
+            releaseConnection(store);
         }
     }
 
-
-    public static Store openConnection(AccountInformation info) throws MessagingException, NoSuchProviderException {
-        Properties props = new Properties();
-        //TODO refactor with an ssl trust store
-        if (info.isSSLEnabled()) {
-            props.put("mail.imaps.ssl.trust", "*");
+    @Override
+    public synchronized void sync(Listener... listener) {
+        if (syncStates.isEmpty() || !eventCache.isEmpty()) {
+            refresh(listener);
+            return;
         }
-        IMAPStore store = null;
 
+        Store store = null;
         try {
-            Session session = Session.getInstance(props, null);
-            store = (IMAPStore) (info.isSSLEnabled() ? session.getStore("imaps") : session.getStore("imap"));
-            store.connect(info.getHost(), info.getPort(), info.getUsername(), info.getPassword());
-        } catch (MessagingException e) {
-            //try using starttls
-            if (info.isSSLEnabled()) {
-                props = new Properties();
-                props.put("mail.imap.ssl.trust", "*");
-                //try to use starttls
-                props.put("mail.imap.starttls.enable", "true");
-                props.put("mail.imap.ssl.protocols", "TLSv1 TLSv1.1 TLSv1.2");
-
-                Session session = Session.getInstance(props, null);
-                store = (IMAPStore) session.getStore("imap");
-                store.connect(info.getHost(), info.getPort(), info.getUsername(), info.getPassword());
-            } else {
-                throw e;
-            }
+            store = borrowConnection();
+            syncIncremental(store, listener);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            releaseConnection(store);
         }
-        //Because of a hint from Aaron Seigo on G+, maybe they are using a filter in near future on the server, so that just "Kolabclients" can see Groupware folders
-        if (info.isFolderAnnotationEnabled()) {
-            Map<String, String> clientParams = new HashMap<String, String>();
-            clientParams.put("name", "/Kolabnotes-java");
-            clientParams.put("version", "3.3.4");
-            clientParams.put("os", System.getProperty("os.name"));
-            clientParams.put("support-url", "https://github.com/konradrenner/kolabnotes-java/issues");
-            clientParams.put("os-version", System.getProperty("os.version"));
-            clientParams.put("vendor", "kolabnotes-java");
-            clientParams.put("environment", System.getProperty("java.vendor") + "; Java " + System.getProperty("java.version") + "; " + System.getProperty("java.vendor.url"));
 
-            store.id(clientParams);
+        saveSyncState(listener);
+        schedulePrefetch();
+    }
+
+    void saveSyncState(Listener... listener) {
+        if (folderMetadataCache != null) {
+            try {
+                folderMetadataCache.save();
+            } catch (IOException e) {
+                for (Listener listen : listener) {
+                    listen.onFolderSyncException("Folder metadata", e);
+                }
+            }
         }
 
-        return store;
-    }
-    
-    void initSharedFolders(Store store, FetchProfile fetchProfile, Date modificationDate, boolean folderAnnotationEnabled, boolean sharedFolderEnabled, Listener... listener) throws MessagingException, IOException {
-        if (!folderAnnotationEnabled || !sharedFolderEnabled) {
-            //Just Kolab servers are enabled for this feature
+        if (syncStateStore == null) {
             return;
         }
 
         try {
-            Folder defaultFolder = store.getDefaultFolder();
-            Folder[] others = defaultFolder.list("Other Users*");
-            Folder[] shares = defaultFolder.list("Shared Folders*");
-            Folder[] list = new Folder[others.length + shares.length];
-            if (list.length > 0) {
-                System.arraycopy(others, 0, list, 0, others.length);
-                System.arraycopy(shares, 0, list, others.length, shares.length);
+            syncStateStore.save(new SyncStateStore.Snapshot(account, rootfolder, notebookCache.values(), syncStates.values()));
+        } catch (IOException e) {
+            for (Listener listen : listener) {
+                listen.onFolderSyncException("Sync state", e);
             }
+        }
+    }
 
-            for (Folder folder : list) {
-                if (folder instanceof IMAPFolder) {
-                    IMAPFolder imapFolder = (IMAPFolder) folder;
-                    GetSharedFolderCommand metadataCommand = new GetSharedFolderCommand(folder.getFullName());
-                    imapFolder.doCommand(metadataCommand);
-
-                    //Just handle folders which contain notes
-                    if (metadataCommand.isSharedNotesFolder()) {
+    /**
+     * Initializes the cache from the sync state store
+     *
+     * @return true, if a sync state was restored
+     */
+    boolean restoreSyncState() {
+        if (syncStateStore == null || !syncStateStore.exists()) {
+            return false;
+        }
 
-                        GetFolderPermissionsCommand permissionsCommand = new GetFolderPermissionsCommand(folder.getFullName());
-                        imapFolder.doCommand(permissionsCommand);
+        SyncStateStore.Snapshot snapshot;
+        try {
+            snapshot = syncStateStore.load();
+        } catch (IOException e) {
+            //the state is not readable anymore, e.g. after an update of the library, so it will be replaced with the next refresh
+            return false;
+        }
 
-                        folder.open(READ_ONLY);
-                        Notebook book = initNotesFromFolder(folder, fetchProfile, modificationDate, true);
+        if (!snapshot.isFrom(account, rootfolder)) {
+            return false;
+        }
 
-                        if (book != null) {
-                            SharedNotebook shared = (SharedNotebook) book;
-                            shared.setNoteCreationAllowed(permissionsCommand.isIsNoteCreationAllowed());
-                            shared.setNoteModificationAllowed(permissionsCommand.isIsNoteModificationAllowed());
-                        }
+        disableChangeListening();
+        try {
+            notesCache.clear();
+            notebookCache.clear();
+            messageLocators.clear();
+            syncStates.clear();
+
+            for (Notebook notebook : snapshot.getNotebooks()) {
+                addNotebook(notebook.getIdentification().getUid(), notebook);
+                for (Note note : notebook.getNotes()) {
+                    addNote(note.getIdentification().getUid(), note);
 
-                        for (Listener listen : listener) {
-                            listen.onSyncUpdate(folder.getFullName());
+                    for (Attachment attachment : note.getAttachments()) {
+                        if (attachment.getLoader() instanceof ImapAttachmentLoader) {
+                            ((ImapAttachmentLoader) attachment.getLoader()).bind(this);
                         }
                     }
                 }
             }
-        } catch (Exception e) {
-            for (Listener listen : listener) {
-                listen.onFolderSyncException("Shared Folders sync", e);
+
+            for (FolderSyncState state : snapshot.getFolderStates()) {
+                syncStates.put(state.getFolderName(), state);
             }
+        } finally {
+            enableChangeListening();
         }
+        return true;
     }
 
-    @Override
-    public void merge(Listener... listener) {
-        initCache();
+    void syncIncremental(Store store, Listener... listener) throws MessagingException {
         disableChangeListening();
         try {
-            
-            Store store = openConnection(account);
-            
-            if (remoteTags == null) {
-                remoteTags = new RemoteTags(configurationParser, account, rootfolder);
-            }
-            remoteTags.init(store);
-
-            //Actual there are no notebooks in notebooks supported
-            ArrayList<Notebook> notebooks = new ArrayList<Notebook>(getNotebooks());
-            //Deleted notebooks must be merged with the server too (delete from server)
-            notebooks.addAll(deletedNotebookCache.values());
+            boolean condstore = supportsCondstore(store);
+            boolean qresync = condstore && ((IMAPStore) store).hasCapability("QRESYNC");
+            FolderDiscovery discovery = discoverFolders(store);
 
-            //Root of the whole IMAP structure
-            IMAPFolder defaultFolder = (IMAPFolder) store.getDefaultFolder();
-            
-            //Get the root folder, so that new folders can be created under it
-            IMAPFolder rootFolder = (IMAPFolder) store.getFolder(rootfolder);
+            remoteTags = new RemoteTags(configurationParser, account, rootfolder, connectionPool);
+            remoteTags.setFolderMetadata(discovery, folderMetadataCache);
+            remoteTags.init(store);
 
-            Flags deleted = new Flags(Flags.Flag.DELETED);
+            Map<String, Boolean> notesFolders = listNotesFolders(store, discovery);
 
+            //Folders which were deleted on the server
+            for (FolderSyncState state : new ArrayList<FolderSyncState>(syncStates.values())) {
+                if (!notesFolders.containsKey(state.getFolderName())) {
+                    removeFromCache(state, listener);
+                }
+            }
 
-            for (Notebook book : notebooks) {
+            FetchProfile fetchProfile = new FetchProfile();
+            for (Map.Entry<String, Boolean> entry : notesFolders.entrySet()) {
                 try {
-                    IMAPFolder folder;
-                    if (rootfolder.equals(book.getSummary())) {
-                        folder = rootFolder;
-                    } else if (book.isShared()) {
-                        folder = (IMAPFolder) defaultFolder.getFolder(book.getSummary());
-                    } else {
-                        folder = (IMAPFolder) rootFolder.getFolder(book.getSummary());
-                    }
-
-                    Type event = getEvent(book.getIdentification().getUid());
-                    if (event != null) {
-                        if (event == Type.DELETE) {
-                            folder.delete(true);
-                            continue;
-                        } else if (event == Type.NEW || event == Type.UPDATE) {
-                            if (event == Type.NEW) {
-                                folder.create(Folder.HOLDS_MESSAGES);
-                            } else {
-                                //TODO
-                                folder.renameTo(folder);
-                            }
-
-                            if (account.isFolderAnnotationEnabled()) {
-                                folder.doCommand(new SetMetadataCommand(folder.getFullName()));
-                            }
-                        }
-                    }
-
-                    //if the folder does not exist, do nothing
-                    if (folder.exists()) {
-                        if (!folder.isOpen()) {
-                            folder.open(READ_WRITE);
-                        }
-                        ArrayList<Note> notes = new ArrayList<Note>(book.getNotes());
-                        Map<String, Note> deletedNotes = deletedNotesCache.get(book.getIdentification().getUid());
-                        if (deletedNotes != null) {
-                            notes.addAll(deletedNotes.values());
-                        }
-                        ArrayList<Message> messagesToAdd = new ArrayList<Message>();
-                        for (Note note : notes) {
-                            Message[] messages = folder.getMessages();
-
-                            event = getEvent(note.getIdentification().getUid());
-
-                            //IMAPMessages are readonly, so in case of update, first delete the old note, then create a new one                        
-                            if (event == Type.UPDATE) {
-                                String uid = note.getIdentification().getUid();
-
-                                MimeMessage message = findMessage(uid, messages);
-
-                                if (message != null) {
-                                    folder.setFlags(new Message[]{message}, deleted, true);
-                                }
-                            }
-
-                            if (event == Type.NEW || event == Type.UPDATE) {
-                                
-                                MimeMessage message = createMessage(account,
-                                        note.getIdentification(),
-                                        note.getAuditInformation(),
-                                        new IMAPKolabDataHandler(note, "APPLICATION/VND.KOLAB+XML", parser),
-                                        "application/x-vnd.kolab.note");
-                                
-                                addAttachments(message, note.getAttachments());
-
-                                messagesToAdd.add(message);
-
-                                String uid = note.getIdentification().getUid();
-                                remoteTags.removeTags(uid);
-                                remoteTags.attachTags(uid, note.getCategories().toArray(new Tag[note.getCategories().size()]));
-                            } else if (event == Type.DELETE) {
-                                Message message = findMessage(note.getIdentification().getUid(), messages);
-                                if (message != null) {
-                                    folder.setFlags(new Message[]{message}, deleted, true);
-                                }
+                    IMAPFolder folder = (IMAPFolder) store.getFolder(entry.getKey());
+                    syncFolderState(folder, syncStates.get(entry.getKey()), entry.getValue(), condstore, qresync, fetchProfile, listener);
 
-                                remoteTags.removeTags(note.getIdentification().getUid());
-                            }
-                        }
-                        folder.addMessages(messagesToAdd.toArray(new Message[messagesToAdd.size()]));
-                        folder.close(true);
+                    for (Listener listen : listener) {
+                        listen.onSyncUpdate(folder.getFullName());
                     }
                 } catch (Exception e) {
-                    for (Listener list : listener) {
-                        list.onFolderSyncException(book.getSummary(), e);
+                    //maybe the folder was removed or its rights were changed
+                    invalidateFolderMetadata(entry.getKey());
+                    for (Listener listen : listener) {
+                        listen.onFolderSyncException(entry.getKey(), e);
                     }
                 }
             }
 
-
-            remoteTags.merge();
-
-            store.close();
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
+            //Tags are stored in the configuration folder, so they could have changed without a change of the note
+            for (Note note : notesCache.values()) {
+                if (noteCompletelyLoaded(note)) {
+                    updateCategories(note);
+                }
+            }
         } finally {
             enableChangeListening();
         }
     }
 
-    @Override
-    public void fillUnloadedNote(final Note n) {
-        disableChangeListening();
-
-        Note note = n;
+    /**
+     * Syncs one folder incrementally, if possible, otherwise the folder is
+     * loaded completely
+     *
+     * @param folder
+     * @param state - null, if the folder is not known
+     * @param sharedFolder
+     * @param condstore
+     * @param qresync
+     * @param fetchProfile
+     * @param listener
+     * @throws MessagingException
+     * @throws IOException
+     */
+    void syncFolderState(IMAPFolder folder, FolderSyncState state, boolean sharedFolder, boolean condstore, boolean qresync, FetchProfile fetchProfile, Listener... listener) throws MessagingException, IOException {
+        boolean synced;
+        if (state == null) {
+            synced = false;
+        } else if (condstore && state.isModSeqKnown()) {
+            synced = syncFolder(folder, state, qresync, listener);
+        } else if (state.isUidNextKnown()) {
+            synced = syncFolderByUidNext(folder, state, listener);
+        } else {
+            synced = false;
+        }
+
+        if (!synced) {
+            if (state != null) {
+                removeFromCache(state, listener);
+            }
+            initFolder(folder, sharedFolder, fetchProfile, null, listener);
+        }
+    }
+
+    @Override
+    public synchronized void startPush(PushListener listener) {
+        stopPush();
+        initCache();
+
+        List<String> folders = new ArrayList<String>(syncStates.keySet());
+        if (remoteTags != null && remoteTags.getConfigurationFolderName() != null) {
+            folders.add(remoteTags.getConfigurationFolderName());
+        }
+
+        ImapPushWatcher watcher = new ImapPushWatcher(this, account, listener);
+        try {
+            watcher.start(folders);
+        } catch (MessagingException e) {
+            watcher.stop();
+            throw new IllegalStateException(e);
+        }
+        pushWatcher = watcher;
+    }
+
+    @Override
+    public synchronized void stopPush() {
+        if (pushWatcher != null) {
+            pushWatcher.stop();
+            pushWatcher = null;
+        }
+        deferredPushFolders.clear();
+    }
+
+    @Override
+    public void startPrefetch(Listener... listener) {
+        startPrefetch(ImapNotePrefetcher.DEFAULT_BATCH_SIZE, 1, 0, listener);
+    }
+
+    /**
+     * Starts loading the unloaded notes in the background. Every batch is
+     * loaded with one UID FETCH per folder over a connection, which is free in
+     * the connection pool.
+     *
+     * @param batchSize - maximum number of notes, which are loaded together
+     * @param concurrency - number of batches which are loaded at the same
+     * time, every batch needs its own connection
+     * @param maxBytesPerSecond - limit for the transfered bytes, 0 for no
+     * limit
+     * @param listener
+     */
+    public synchronized void startPrefetch(int batchSize, int concurrency, long maxBytesPerSecond, Listener... listener) {
+        stopPrefetch();
+        initCache();
+
+        ImapNotePrefetcher lprefetcher = new ImapNotePrefetcher(this, batchSize, concurrency, maxBytesPerSecond, listener);
+        lprefetcher.start(notesCache.values());
+        prefetcher = lprefetcher;
+    }
+
+    @Override
+    public synchronized void stopPrefetch() {
+        if (prefetcher != null) {
+            prefetcher.stop();
+            prefetcher = null;
+        }
+    }
+
+    /**
+     * Stops the push mode and the prefetch and closes the connection pool,
+     * so that no connections and background threads are left. If the pool is
+     * shared with other repositories, it is closed for them too. The
+     * repository can not be used for remote operations afterwards.
+     */
+    public synchronized void close() {
+        stopPush();
+        stopPrefetch();
+        connectionPool.close();
+    }
+
+    /**
+     * Queues the unloaded notes for the prefetch after they were created by a
+     * refresh, if the prefetch is running
+     */
+    void schedulePrefetch() {
+        ImapNotePrefetcher lprefetcher = prefetcher;
+        if (lprefetcher != null) {
+            lprefetcher.enqueue(notesCache.values());
+        }
+    }
+
+    @Override
+    public Note getNote(String id) {
+        Note note = super.getNote(id);
+
+        ImapNotePrefetcher lprefetcher = prefetcher;
+        if (note != null && lprefetcher != null && !noteCompletelyLoaded(note)) {
+            //the note is needed now, so it is loaded before the others
+            lprefetcher.prioritize(note);
+        }
+        return note;
+    }
+
+    /**
+     * Loads the changes of a folder after a notification from the server and
+     * informs the listener about every changed note. The sync state is not
+     * saved here, the watcher saves it delayed with savePushedState. Like
+     * sync, the update must not overwrite local changes, so it is deferred
+     * until the local changes are merged, see loadDeferredPushUpdates.
+     *
+     * @param folderName
+     * @param listener
+     * @return false, if the changes could not be loaded
+     */
+    synchronized boolean pushUpdate(String folderName, PushListener listener) {
+        if (hasUnmergedChanges()) {
+            deferredPushFolders.add(folderName);
+            return true;
+        }
+
+        Store store = null;
+        disableChangeListening();
+        try {
+            store = borrowConnection();
+
+            if (remoteTags != null && folderName.equals(remoteTags.getConfigurationFolderName())) {
+                remoteTags = new RemoteTags(configurationParser, account, rootfolder, connectionPool);
+                remoteTags.setFolderMetadata(discoverFolders(store), folderMetadataCache);
+                remoteTags.init(store);
+
+                for (Note note : notesCache.values()) {
+                    if (noteCompletelyLoaded(note) && updateCategories(note)) {
+                        listener.onNoteChanged(note);
+                    }
+                }
+            } else {
+                FolderSyncState state = syncStates.get(folderName);
+                if (state == null) {
+                    //the folder was removed by a sync in the meantime
+                    return true;
+                }
+
+                boolean condstore = supportsCondstore(store);
+                boolean qresync = condstore && ((IMAPStore) store).hasCapability("QRESYNC");
+
+                Map<String, Long> before = state.getMessageUidsPerNote();
+                syncFolderState((IMAPFolder) store.getFolder(folderName), state, state.isShared(), condstore, qresync, new FetchProfile(), listener);
+
+                FolderSyncState newState = syncStates.get(folderName);
+                Map<String, Long> after = newState == null ? new HashMap<String, Long>() : newState.getMessageUidsPerNote();
+                fireNoteChanges(before, after, listener);
+            }
+
+            listener.onSyncUpdate(folderName);
+            return true;
+        } catch (Exception e) {
+            listener.onFolderSyncException(folderName, e);
+            return false;
+        } finally {
+            releaseConnection(store);
+            enableChangeListening();
+        }
+    }
+
+    synchronized void savePushedState(PushListener listener) {
+        saveSyncState(listener);
+    }
+
+    /**
+     * @return true, if there are tracked changes of notes, notebooks or tags,
+     * which are not merged with the server
+     */
+    synchronized boolean hasUnmergedChanges() {
+        return !eventCache.isEmpty() || (remoteTags != null && remoteTags.hasLocalChanges());
+    }
+
+    /**
+     * Loads the push updates, which were deferred because of local changes,
+     * if the push mode is still running and the changes are merged now
+     */
+    synchronized void loadDeferredPushUpdates() {
+        ImapPushWatcher watcher = pushWatcher;
+        if (watcher == null || deferredPushFolders.isEmpty() || hasUnmergedChanges()) {
+            return;
+        }
+
+        List<String> folders = new ArrayList<String>(deferredPushFolders);
+        deferredPushFolders.clear();
+        for (String folderName : folders) {
+            pushUpdate(folderName, watcher.getListener());
+        }
+        watcher.scheduleSave();
+    }
+
+    synchronized Set<String> getDeferredPushFolders() {
+        return new HashSet<String>(deferredPushFolders);
+    }
+
+    /**
+     * Compares the messages of a folder before and after a sync. Because an
+     * update of a note is always a new message, a note with a new message UID
+     * was changed.
+     *
+     * @param before - key is the note UID, value the message UID
+     * @param after - key is the note UID, value the message UID
+     * @param listener
+     */
+    void fireNoteChanges(Map<String, Long> before, Map<String, Long> after, PushListener listener) {
+        for (Map.Entry<String, Long> entry : after.entrySet()) {
+            Long oldMessage = before.get(entry.getKey());
+            if (oldMessage == null) {
+                Note note = notesCache.get(entry.getKey());
+                if (note != null) {
+                    listener.onNoteAdded(note);
+                }
+            } else if (!oldMessage.equals(entry.getValue())) {
+                Note note = notesCache.get(entry.getKey());
+                if (note != null) {
+                    listener.onNoteChanged(note);
+                }
+            }
+        }
+
+        for (String noteUid : before.keySet()) {
+            if (!after.containsKey(noteUid)) {
+                listener.onNoteRemoved(noteUid);
+            }
+        }
+    }
+
+    static void fireNoteLoaded(String folderName, Note note, Listener... listener) {
+        if (note == null) {
+            //messages without a Kolab XML part
+            return;
+        }
+
+        for (Listener listen : listener) {
+            if (listen instanceof ProgressListener) {
+                ((ProgressListener) listen).onNoteLoaded(folderName, note);
+            }
+        }
+    }
+
+    static void fireNoteRemoved(String folderName, String noteUid, Listener... listener) {
+        for (Listener listen : listener) {
+            if (listen instanceof ProgressListener) {
+                ((ProgressListener) listen).onNoteRemoved(folderName, noteUid);
+            }
+        }
+    }
+
+    static void fireFolderProgress(String folderName, int loadedMessages, int totalMessages, long bytes, Listener... listener) {
+        for (Listener listen : listener) {
+            if (listen instanceof ProgressListener) {
+                ((ProgressListener) listen).onFolderProgress(folderName, loadedMessages, totalMessages, bytes);
+            }
+        }
+    }
+
+    /**
+     * Fetches just the changes of a folder since the last sync, by using the
+     * CONDSTORE and, if supported, the QRESYNC extension (RFC 7162).
+     *
+     * @param folder
+     * @param state
+     * @param qresync
+     * @param listener
+     * @return false, if an incremental sync is not possible and the folder
+     * must be loaded completely
+     * @throws MessagingException
+     * @throws IOException
+     */
+    boolean syncFolder(IMAPFolder folder, FolderSyncState state, boolean qresync, Listener... listener) throws MessagingException, IOException {
+        List<MailEvent> events;
+        if (qresync) {
+            events = folder.open(READ_ONLY, new ResyncData(state.getUidValidity(), state.getHighestModSeq()));
+        } else {
+            events = folder.open(READ_ONLY, ResyncData.CONDSTORE);
+        }
+        openedFolders.add(folder);
+
+        if (!isIncrementalSyncPossible(state, folder.getUIDValidity())) {
+            folder.close(false);
+            return false;
+        }
+        Notebook notebook = notebookCache.get(state.getNotebookUid());
+
+        long highestModSeq = folder.getHighestModSeq();
+        if (!isChanged(state, highestModSeq)) {
+            return true;
+        }
+
+        Set<Long> vanished;
+        if (qresync) {
+            vanished = getVanishedUids(events);
+        } else {
+            vanished = getVanishedUids(state, searchMessageUids(folder));
+        }
+        removeMessages(notebook, state, vanished, listener);
+
+        Message[] changed = folder.getMessagesByUIDChangedSince(1, UIDFolder.LASTUID, state.getHighestModSeq());
+        loadNewMessages(folder, notebook, state, changed, listener);
+
+        state.setHighestModSeq(highestModSeq);
+        state.setUidNext(folder.getUIDNext());
+        return true;
+    }
+
+    /**
+     * Fetches just the changes of a folder since the last sync, for servers
+     * without CONDSTORE. Because an update of a Kolab object is always a
+     * deletion plus a new message, all changes are found with the messages
+     * above the last known UIDNEXT and the UIDs which are not on the server
+     * anymore.
+     *
+     * @param folder
+     * @param state
+     * @param listener
+     * @return false, if an incremental sync is not possible and the folder
+     * must be loaded completely
+     * @throws MessagingException
+     * @throws IOException
+     */
+    boolean syncFolderByUidNext(IMAPFolder folder, FolderSyncState state, Listener... listener) throws MessagingException, IOException {
+        folder.open(READ_ONLY);
+        openedFolders.add(folder);
+
+        if (!isIncrementalSyncPossible(state, folder.getUIDValidity())) {
+            folder.close(false);
+            return false;
+        }
+        Notebook notebook = notebookCache.get(state.getNotebookUid());
+
+        long uidNext = folder.getUIDNext();
+        int knownMessages = state.getMessageUids().size();
+
+        Message[] added = new Message[0];
+        if (hasNewMessages(state, uidNext)) {
+            added = folder.getMessagesByUID(state.getUidNext(), UIDFolder.LASTUID);
+        }
+        int addedMessages = loadNewMessages(folder, notebook, state, added, listener);
+
+        if (hasExpungedMessages(knownMessages, addedMessages, folder.getMessageCount())) {
+            removeMessages(notebook, state, getVanishedUids(state, searchMessageUids(folder)), listener);
+        }
+
+        state.setUidNext(uidNext);
+        return true;
+    }
+
+    /**
+     * @param state
+     * @param uidValidity - actual UIDVALIDITY of the folder
+     * @return false, if the folder was recreated or its notebook is not known,
+     * so that it must be loaded completely
+     */
+    boolean isIncrementalSyncPossible(FolderSyncState state, long uidValidity) {
+        return uidValidity == state.getUidValidity() && notebookCache.containsKey(state.getNotebookUid());
+    }
+
+    /**
+     * @param state
+     * @param highestModSeq - actual HIGHESTMODSEQ of the folder
+     * @return true, if the folder was changed since the last sync
+     */
+    static boolean isChanged(FolderSyncState state, long highestModSeq) {
+        return highestModSeq != state.getHighestModSeq();
+    }
+
+    /**
+     * @param state
+     * @param uidNext - actual UIDNEXT of the folder
+     * @return true, if messages were added since the last sync
+     */
+    static boolean hasNewMessages(FolderSyncState state, long uidNext) {
+        return uidNext != state.getUidNext();
+    }
+
+    /**
+     * @param state
+     * @param uid - UID of a message from a fetch of the changed or new
+     * messages
+     * @return true, if the message was not loaded during the last sync
+     */
+    static boolean isNewMessage(FolderSyncState state, long uid) {
+        //The content of an IMAP message can not be changed, so for known messages just the flags were changed.
+        //Also a UID range ending with * contains always the last message, even if its UID is lower
+        return !state.containsMessage(uid) && (state.getUidNext() <= 0 || uid >= state.getUidNext());
+    }
+
+    /**
+     * @param knownMessages - number of messages after the last sync
+     * @param addedMessages - number of messages which were added since then
+     * @param messageCount - actual number of messages in the folder
+     * @return true, if the count does not match, so there must be deleted
+     * messages
+     */
+    static boolean hasExpungedMessages(int knownMessages, int addedMessages, int messageCount) {
+        return messageCount != knownMessages + addedMessages;
+    }
+
+    /**
+     * @param events - events from opening the folder with QRESYNC
+     * @return the UIDs of the vanished messages
+     */
+    static Set<Long> getVanishedUids(List<MailEvent> events) {
+        Set<Long> vanished = new HashSet<Long>();
+        for (MailEvent event : events) {
+            if (event instanceof MessageVanishedEvent) {
+                for (long uid : ((MessageVanishedEvent) event).getUIDs()) {
+                    vanished.add(uid);
+                }
+            }
+        }
+        return vanished;
+    }
+
+    /**
+     * @param state
+     * @param uidsOnServer - UIDs of all messages in the folder
+     * @return the UIDs of the known messages, which are not on the server
+     * anymore
+     */
+    static Set<Long> getVanishedUids(FolderSyncState state, Set<Long> uidsOnServer) {
+        Set<Long> vanished = new HashSet<Long>(state.getMessageUids());
+        vanished.removeAll(uidsOnServer);
+        return vanished;
+    }
+
+    Set<Long> searchMessageUids(IMAPFolder folder) throws MessagingException {
+        UidSearchAllCommand searchCommand = new UidSearchAllCommand();
+        folder.doCommand(searchCommand);
+        return searchCommand.getUids();
+    }
+
+    void removeMessages(Notebook notebook, FolderSyncState state, Set<Long> messageUids, Listener... listener) {
+        for (Long uid : messageUids) {
+            String noteUid = state.removeMessage(uid);
+            if (noteUid != null && removeNoteFromCache(notebook, noteUid)) {
+                fireNoteRemoved(state.getFolderName(), noteUid, listener);
+            }
+        }
+    }
+
+    /**
+     * Loads the notes from the given messages, which are not already known
+     *
+     * @param folder
+     * @param notebook
+     * @param state
+     * @param messages
+     * @param listener
+     * @return number of loaded messages
+     * @throws MessagingException
+     * @throws IOException
+     */
+    int loadNewMessages(IMAPFolder folder, Notebook notebook, FolderSyncState state, Message[] messages, Listener... listener) throws MessagingException, IOException {
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(FetchProfile.Item.CONTENT_INFO);
+        fetchProfile.add(FetchProfile.Item.FLAGS);
+        fetchProfile.add(FetchProfile.Item.ENVELOPE);
+        fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+        folder.fetch(messages, fetchProfile);
+
+        List<Message> newMessages = new ArrayList<Message>();
+        for (Message m : messages) {
+            if (isNewMessage(state, folder.getUID(m))) {
+                newMessages.add(m);
+            }
+        }
+
+        long bytes = 0;
+        for (KolabPart part : loadNotes(folder, notebook, newMessages)) {
+            state.putNote(folder.getUID(part.message), part.getNoteUid(), part.contentHash);
+            if (part.transferContent != null) {
+                bytes += part.transferContent.getCount();
+            }
+            fireNoteLoaded(folder.getFullName(), part.note, listener);
+        }
+
+        if (!newMessages.isEmpty()) {
+            fireFolderProgress(folder.getFullName(), newMessages.size(), newMessages.size(), bytes, listener);
+        }
+        return newMessages.size();
+    }
+
+    void initFolder(IMAPFolder folder, boolean sharedFolder, FetchProfile fetchProfile, Date modificationDate, Listener... listener) throws MessagingException, IOException {
+        if (sharedFolder) {
+            initSharedFolder(folder, fetchProfile, modificationDate, listener);
+        } else {
+            openReadOnly(folder);
+            initNotesFromFolder(folder, fetchProfile, modificationDate, false, listener);
+        }
+    }
+
+    /**
+     * Returns the full names of all folders which contain notes. The value of
+     * the map is true, if the folder is a shared folder
+     *
+     * @param store
+     * @param discovery - folder types of the current operation
+     * @return Map
+     * @throws MessagingException
+     */
+    Map<String, Boolean> listNotesFolders(Store store, FolderDiscovery discovery) throws MessagingException {
+        Map<String, Boolean> ret = new LinkedHashMap<String, Boolean>();
+
+        Folder rFolder = store.getFolder(rootfolder);
+        if (isNotesFolder(discovery, rFolder)) {
+            ret.put(rFolder.getFullName(), Boolean.FALSE);
+        }
+
+        for (Folder folder : rFolder.list("*")) {
+            if (isNotesFolder(discovery, folder)) {
+                ret.put(folder.getFullName(), Boolean.FALSE);
+            }
+        }
+
+        if (account.isFolderAnnotationEnabled() && account.isSharedFoldersEnabled()) {
+            if (discovery.isComplete()) {
+                for (String name : discovery.getSharedNotesFolderNames()) {
+                    ret.put(name, Boolean.TRUE);
+                }
+                return ret;
+            }
+
+            for (Folder folder : listSharedFolders(store)) {
+                if (folder instanceof IMAPFolder) {
+                    GetSharedFolderCommand metadataCommand = new GetSharedFolderCommand(folder.getFullName());
+                    ((IMAPFolder) folder).doCommand(metadataCommand);
+
+                    if (metadataCommand.isSharedNotesFolder()) {
+                        ret.put(folder.getFullName(), Boolean.TRUE);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    boolean isNotesFolder(FolderDiscovery discovery, Folder folder) throws MessagingException {
+        if (account.isFolderAnnotationEnabled() && folder instanceof IMAPFolder) {
+            String name = folder.getFullName();
+            if (discovery.isComplete() && discovery.getFolderType(name) == null) {
+                FolderMetadataCache cache = folderMetadataCache;
+                if (cache != null && discovery.isCached()) {
+                    //the folder was maybe created after the types were cached
+                    cache.invalidateFolderTypes(account);
+                    discovery.update(discoverFolders(folder.getStore()));
+                }
+
+                if (discovery.isComplete() && discovery.getFolderType(name) == null) {
+                    //remember the folder without type, so that it does not trigger a discovery in every operation
+                    discovery.putUntyped(name);
+                    if (cache != null) {
+                        cache.putFolderDiscovery(account, discovery);
+                    }
+                }
+            }
+
+            if (discovery.isComplete()) {
+                return discovery.isNotesFolder(name);
+            }
+
+            GetMetadataCommand metadataCommand = new GetMetadataCommand(name);
+            ((IMAPFolder) folder).doCommand(metadataCommand);
+            return metadataCommand.isNotesFolder();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the cached folder types or discovers them with one command, if
+     * they are not cached. The result belongs to the calling operation and
+     * must not be shared with other threads.
+     *
+     * @param store
+     * @return FolderDiscovery
+     */
+    FolderDiscovery discoverFolders(Store store) {
+        if (!account.isFolderAnnotationEnabled()) {
+            return FolderDiscovery.INCOMPLETE;
+        }
+
+        FolderMetadataCache cache = folderMetadataCache;
+        FolderDiscovery discovery = cache == null ? null : cache.getFolderDiscovery(account);
+        if (discovery == null) {
+            discovery = FolderDiscovery.discover(store);
+            if (cache != null) {
+                cache.putFolderDiscovery(account, discovery);
+            }
+        }
+        return discovery;
+    }
+
+    void invalidateFolderMetadata(String folderName) {
+        FolderMetadataCache cache = folderMetadataCache;
+        if (cache != null) {
+            cache.invalidateFolderTypes(account);
+            cache.invalidateRights(account, folderName);
+        }
+    }
+
+    void removeFromCache(FolderSyncState state, Listener... listener) {
+        Notebook notebook = notebookCache.remove(state.getNotebookUid());
+        if (notebook != null) {
+            for (Note note : notebook.getNotes()) {
+                String uid = note.getIdentification().getUid();
+                if (notesCache.get(uid) == note) {
+                    notesCache.remove(uid);
+                    messageLocators.remove(uid);
+                    fireNoteRemoved(state.getFolderName(), uid, listener);
+                }
+            }
+        }
+        syncStates.remove(state.getFolderName());
+    }
+
+    /**
+     * Removes the note from the notebook and, if it is not moved to another
+     * folder, from the cache
+     *
+     * @param notebook
+     * @param noteUid
+     * @return true, if the note was removed from the cache
+     */
+    boolean removeNoteFromCache(Notebook notebook, String noteUid) {
+        Note note = notebook.getNote(noteUid);
+        if (note == null) {
+            return false;
+        }
+        notebook.deleteNote(noteUid);
+
+        //maybe the note was moved to a folder which is already synced
+        if (notesCache.get(noteUid) == note) {
+            notesCache.remove(noteUid);
+            messageLocators.remove(noteUid);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the categories of the note to the tags from the server
+     *
+     * @param note
+     * @return true, if the categories were changed
+     */
+    boolean updateCategories(Note note) {
+        Set<Tag> remote = new LinkedHashSet<Tag>();
+        for (RemoteTags.TagDetails tag : remoteTags.getTagsFromNote(note.getIdentification().getUid())) {
+            remote.add(tag.getTag());
+        }
+
+        if (!remote.equals(note.getCategories())) {
+            note.removeCategories(note.getCategories().toArray(new Tag[note.getCategories().size()]));
+            note.addCategories(remote.toArray(new Tag[remote.size()]));
+            return true;
+        }
+        return false;
+    }
+
+    void openReadOnly(Folder folder) throws MessagingException {
+        if (folder instanceof IMAPFolder && supportsCondstore(folder.getStore())) {
+            //enables CONDSTORE, so that the server reports the HIGHESTMODSEQ of the folder
+            ((IMAPFolder) folder).open(READ_ONLY, ResyncData.CONDSTORE);
+        } else {
+            folder.open(READ_ONLY);
+        }
+        openedFolders.add(folder);
+    }
+
+    Store borrowConnection() throws MessagingException {
+        Store store = connectionPool.borrow();
+        if (activeStore.get() == null) {
+            activeStore.set(store);
+        }
+        return store;
+    }
+
+    /**
+     * Closes the folders of the store which were opened during the remote
+     * operation and gives the store back to the pool
+     *
+     * @param store - can be null
+     */
+    void releaseConnection(Store store) {
+        if (store == null) {
+            return;
+        }
+
+        synchronized (openedFolders) {
+            Iterator<Folder> it = openedFolders.iterator();
+            while (it.hasNext()) {
+                Folder folder = it.next();
+                if (folder.getStore() != store) {
+                    //the folder is used by another thread
+                    continue;
+                }
+
+                if (folder.isOpen()) {
+                    try {
+                        folder.close(false);
+                    } catch (MessagingException e) {
+                        //the folder is not used anymore
+                    }
+                }
+                it.remove();
+            }
+        }
+
+        if (activeStore.get() == store) {
+            activeStore.remove();
+        }
+        connectionPool.release(store);
+    }
+
+    static boolean supportsCondstore(Store store) throws MessagingException {
+        return hasCapability(store, "CONDSTORE");
+    }
+
+    static boolean hasCapability(Store store, String capability) throws MessagingException {
+        return store instanceof IMAPStore && ((IMAPStore) store).hasCapability(capability);
+    }
+
+    @Override
+    public SortedSet<String> getAllPossibleRootFolders() {
+        Store store = null;
+        try {
+            store = borrowConnection();
+            Folder defaultFolder = store.getDefaultFolder();
+            Folder[] list = defaultFolder.list("%");
+            FolderDiscovery discovery = discoverFolders(store);
+
+            SortedSet<String> ret = new TreeSet<String>();
+            for (Folder folder : list) {
+                boolean isNotesFolder = true;
+                if (account.isFolderAnnotationEnabled()) {
+                    if (discovery.isComplete()) {
+                        isNotesFolder = discovery.isNotesFolder(folder.getFullName());
+                    } else if (folder instanceof IMAPFolder) {
+                        GetMetadataCommand metadataCommand = new GetMetadataCommand(folder.getFullName());
+                        ((IMAPFolder) folder).doCommand(metadataCommand);
+
+                        //Just handle folders which contain notes
+                        isNotesFolder = metadataCommand.isNotesFolder();
+                    }
+                }
+
+                if (isNotesFolder) {
+                    ret.add(folder.getName());
+                }
+            }
+
+            return ret;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            releaseConnection(store);
+        }
+    }
+
+
+    /**
+     * Opens a new connection, which is not managed by a pool
+     *
+     * @param info
+     * @return Store
+     * @throws MessagingException
+     * @throws NoSuchProviderException
+     */
+    public static Store openConnection(AccountInformation info) throws MessagingException, NoSuchProviderException {
+        return new ImapConnectionPool(info).createStore();
+    }
+    
+    void initSharedFolders(Store store, FolderDiscovery discovery, FetchProfile fetchProfile, Date modificationDate, boolean folderAnnotationEnabled, boolean sharedFolderEnabled, Listener... listener) throws MessagingException, IOException {
+        if (!folderAnnotationEnabled || !sharedFolderEnabled) {
+            //Just Kolab servers are enabled for this feature
+            return;
+        }
+
+        try {
+            if (discovery.isComplete()) {
+                for (String name : discovery.getSharedNotesFolderNames()) {
+                    Folder folder = store.getFolder(name);
+                    if (folder instanceof IMAPFolder) {
+                        initSharedFolder((IMAPFolder) folder, fetchProfile, modificationDate, listener);
+
+                        for (Listener listen : listener) {
+                            listen.onSyncUpdate(name);
+                        }
+                    }
+                }
+                return;
+            }
+
+            for (Folder folder : listSharedFolders(store)) {
+                if (folder instanceof IMAPFolder) {
+                    IMAPFolder imapFolder = (IMAPFolder) folder;
+                    GetSharedFolderCommand metadataCommand = new GetSharedFolderCommand(folder.getFullName());
+                    imapFolder.doCommand(metadataCommand);
+
+                    //Just handle folders which contain notes
+                    if (metadataCommand.isSharedNotesFolder()) {
+                        initSharedFolder(imapFolder, fetchProfile, modificationDate, listener);
+
+                        for (Listener listen : listener) {
+                            listen.onSyncUpdate(folder.getFullName());
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            for (Listener listen : listener) {
+                listen.onFolderSyncException("Shared Folders sync", e);
+            }
+        }
+    }
+
+    Folder[] listSharedFolders(Store store) throws MessagingException {
+        Folder defaultFolder = store.getDefaultFolder();
+        Folder[] others = defaultFolder.list("Other Users*");
+        Folder[] shares = defaultFolder.list("Shared Folders*");
+        Folder[] list = new Folder[others.length + shares.length];
+        if (list.length > 0) {
+            System.arraycopy(others, 0, list, 0, others.length);
+            System.arraycopy(shares, 0, list, others.length, shares.length);
+        }
+        return list;
+    }
+
+    Notebook initSharedFolder(IMAPFolder folder, FetchProfile fetchProfile, Date modificationDate, Listener... listener) throws MessagingException, IOException {
+        FolderMetadataCache cache = folderMetadataCache;
+        FolderMetadataCache.Rights rights = cache == null ? null : cache.getRights(account, folder.getFullName());
+        boolean noteCreationAllowed;
+        boolean noteModificationAllowed;
+        if (rights == null) {
+            GetFolderPermissionsCommand permissionsCommand = new GetFolderPermissionsCommand(folder.getFullName());
+            folder.doCommand(permissionsCommand);
+            noteCreationAllowed = permissionsCommand.isIsNoteCreationAllowed();
+            noteModificationAllowed = permissionsCommand.isIsNoteModificationAllowed();
+
+            if (cache != null) {
+                cache.putRights(account, folder.getFullName(), noteCreationAllowed, noteModificationAllowed);
+            }
+        } else {
+            noteCreationAllowed = rights.isNoteCreationAllowed();
+            noteModificationAllowed = rights.isNoteModificationAllowed();
+        }
+
+        openReadOnly(folder);
+        Notebook book = initNotesFromFolder(folder, fetchProfile, modificationDate, true, listener);
+
+        if (book != null) {
+            SharedNotebook shared = (SharedNotebook) book;
+            shared.setNoteCreationAllowed(noteCreationAllowed);
+            shared.setNoteModificationAllowed(noteModificationAllowed);
+        }
+        return book;
+    }
+
+    @Override
+    public synchronized void merge(Listener... listener) {
+        initCache();
+
+        Set<String> changedNotebooks = getChangedNotebooks();
+        if (changedNotebooks.isEmpty() && (remoteTags == null || !remoteTags.hasLocalChanges())) {
+            //nothing to do, so no connection is needed
+            loadDeferredPushUpdates();
+            return;
+        }
+
+        disableChangeListening();
+        Store store = null;
+        try {
+            
+            store = borrowConnection();
+            FolderDiscovery discovery = discoverFolders(store);
+            
+            if (remoteTags == null) {
+                remoteTags = new RemoteTags(configurationParser, account, rootfolder, connectionPool);
+            }
+            remoteTags.setFolderMetadata(discovery, folderMetadataCache);
+            remoteTags.init(store);
+
+            //Actual there are no notebooks in notebooks supported
+            ArrayList<Notebook> notebooks = new ArrayList<Notebook>(getNotebooks());
+            //Deleted notebooks must be merged with the server too (delete from server)
+            notebooks.addAll(deletedNotebookCache.values());
+
+            //Root of the whole IMAP structure
+            IMAPFolder defaultFolder = (IMAPFolder) store.getDefaultFolder();
+            
+            //Get the root folder, so that new folders can be created under it
+            IMAPFolder rootFolder = (IMAPFolder) store.getFolder(rootfolder);
+
+            //with UIDPLUS the attachments can be bound to their new messages
+            boolean uidplus = hasCapability(store, "UIDPLUS");
+            //with CATENATE unchanged attachments are copied on the server
+            boolean catenate = uidplus && hasCapability(store, "CATENATE");
+
+
+            for (Notebook book : notebooks) {
+                if (!changedNotebooks.contains(book.getIdentification().getUid())) {
+                    continue;
+                }
+
+                try {
+                    IMAPFolder folder;
+                    if (rootfolder.equals(book.getSummary())) {
+                        folder = rootFolder;
+                    } else if (book.isShared()) {
+                        folder = (IMAPFolder) defaultFolder.getFolder(book.getSummary());
+                    } else {
+                        folder = (IMAPFolder) rootFolder.getFolder(book.getSummary());
+                    }
+
+                    Type event = getEvent(book.getIdentification().getUid());
+                    if (event != null) {
+                        if (event == Type.DELETE) {
+                            folder.delete(true);
+                            invalidateFolderMetadata(folder.getFullName());
+
+                            syncStates.remove(folder.getFullName());
+                            deletedNotebookCache.remove(book.getIdentification().getUid());
+                            eventCache.remove(book.getIdentification().getUid());
+                            continue;
+                        } else if (event == Type.NEW || event == Type.UPDATE) {
+                            if (event == Type.NEW) {
+                                folder.create(Folder.HOLDS_MESSAGES);
+                            } else {
+                                //TODO
+                                folder.renameTo(folder);
+                            }
+
+                            if (account.isFolderAnnotationEnabled()) {
+                                folder.doCommand(new SetMetadataCommand(folder.getFullName()));
+                            }
+                            invalidateFolderMetadata(folder.getFullName());
+                        }
+                    }
+
+                    //if the folder does not exist, do nothing
+                    if (folder.exists()) {
+                        if (!folder.isOpen()) {
+                            folder.open(READ_WRITE);
+                            openedFolders.add(folder);
+                        }
+                        ArrayList<Note> notes = new ArrayList<Note>(book.getNotes());
+                        Map<String, Note> deletedNotes = deletedNotesCache.get(book.getIdentification().getUid());
+                        if (deletedNotes != null) {
+                            notes.addAll(deletedNotes.values());
+                        }
+                        ArrayList<Message> messagesToAdd = new ArrayList<Message>();
+                        List<Note> notesToAdd = new ArrayList<Note>();
+                        List<CatenateCommand> catenates = new ArrayList<CatenateCommand>();
+                        List<Note> catenatedNotes = new ArrayList<Note>();
+                        List<Message> messagesToDelete = new ArrayList<Message>();
+
+                        //the messages of changed and deleted notes are searched once per folder
+                        List<String> existingNotes = new ArrayList<String>();
+                        for (Note note : notes) {
+                            event = getEvent(note.getIdentification().getUid());
+                            if (event == Type.UPDATE || event == Type.DELETE) {
+                                existingNotes.add(note.getIdentification().getUid());
+                            }
+                        }
+                        Map<String, Message> messages = findMessages(folder, existingNotes);
+
+                        for (Note note : notes) {
+                            event = getEvent(note.getIdentification().getUid());
+
+                            //IMAPMessages are readonly, so in case of update, first delete the old note, then create a new one                        
+                            if (event == Type.UPDATE) {
+                                String uid = note.getIdentification().getUid();
+
+                                Message message = messages.get(uid);
+
+                                if (message != null && isStoredUnchanged(folder, note, message)) {
+                                    //the message has the same content, so it is not replaced
+                                    remoteTags.removeTags(uid);
+                                    remoteTags.attachTags(uid, note.getCategories().toArray(new Tag[note.getCategories().size()]));
+                                    continue;
+                                }
+
+                                if (message != null) {
+                                    messagesToDelete.add(message);
+                                }
+                            }
+
+                            if (event == Type.NEW || event == Type.UPDATE) {
+                                
+                                MimeMessage message = createMessage(account,
+                                        note.getIdentification(),
+                                        note.getAuditInformation(),
+                                        new IMAPKolabDataHandler(note, "APPLICATION/VND.KOLAB+XML", parser),
+                                        "application/x-vnd.kolab.note");
+                                
+                                String uid = note.getIdentification().getUid();
+
+                                CatenateCommand catenateCommand = null;
+                                if (catenate && event == Type.UPDATE) {
+                                    catenateCommand = createCatenateCommand(folder, note, messages.get(uid), message);
+                                }
+
+                                if (catenateCommand == null) {
+                                    addAttachments(message, note.getAttachments(), folder.getFullName(), uidplus);
+
+                                    messagesToAdd.add(message);
+                                    notesToAdd.add(note);
+                                } else {
+                                    catenates.add(catenateCommand);
+                                    catenatedNotes.add(note);
+                                }
+
+                                //the message is replaced on the server
+                                messageLocators.remove(uid);
+                                remoteTags.removeTags(uid);
+                                remoteTags.attachTags(uid, note.getCategories().toArray(new Tag[note.getCategories().size()]));
+                            } else if (event == Type.DELETE) {
+                                Message message = messages.get(note.getIdentification().getUid());
+                                if (message != null) {
+                                    messagesToDelete.add(message);
+                                }
+                                messageLocators.remove(note.getIdentification().getUid());
+
+                                remoteTags.removeTags(note.getIdentification().getUid());
+                            }
+                        }
+                        notesToAdd.addAll(catenatedNotes);
+                        writeChanges(folder, book, messagesToDelete, messagesToAdd, catenates, notesToAdd);
+
+                        //the changes are on the server now, so a sync does not need a refresh
+                        eventCache.remove(book.getIdentification().getUid());
+                        for (Note note : notes) {
+                            eventCache.remove(note.getIdentification().getUid());
+                        }
+                        deletedNotesCache.remove(book.getIdentification().getUid());
+                    }
+                } catch (Exception e) {
+                    for (Listener list : listener) {
+                        list.onFolderSyncException(book.getSummary(), e);
+                    }
+                }
+            }
+
+
+            remoteTags.merge(store);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            releaseConnection(store);
+            enableChangeListening();
+        }
+
+        saveSyncState(listener);
+        loadDeferredPushUpdates();
+    }
+
+    @Override
+    public void fillUnloadedNote(final Note n) {
+        Note note = n;
         Note unloaded = notesCache.get(note.getIdentification().getUid());
 
-        if (unloaded != null && NOT_LOADED.equals(unloaded.getSummary())) {
+        if (unloaded != null && NOT_LOADED.equals(unloaded.getSummary())) {
+            ImapNotePrefetcher lprefetcher = prefetcher;
+            if (lprefetcher != null) {
+                lprefetcher.remove(note.getIdentification().getUid());
+            }
+
+            //Maybe the not is not stored correct in the client app
+            if (NOT_LOADED.equals(note.getSummary())) {
+                note = parseNoteFromMessage(note.getIdentification().getUid());
+
+                if (note == null) {
+                    return;
+                }
+            }
+
+            synchronized (this) {
+                //the prefetch could have filled the note in the meantime
+                if (NOT_LOADED.equals(unloaded.getSummary())) {
+                    disableChangeListening();
+                    try {
+                        fillNote(unloaded, note);
+                    } finally {
+                        enableChangeListening();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void fillUnloadedNotes(Collection<Note> notes) {
+        ImapNotePrefetcher lprefetcher = prefetcher;
+        if (lprefetcher != null) {
+            for (Note note : notes) {
+                lprefetcher.remove(note.getIdentification().getUid());
+            }
+        }
+
+        List<Note> others = new ArrayList<Note>();
+        UnloadedNotes unloaded;
+        //the sync states are changed by sync and push under the lock, so they are read under the lock too, before a connection is borrowed
+        synchronized (this) {
+            List<String> toLoad = new ArrayList<String>();
+            for (Note note : notes) {
+                String uid = note.getIdentification().getUid();
+                if (NOT_LOADED.equals(note.getSummary()) && findSyncState(uid) != null) {
+                    toLoad.add(uid);
+                } else {
+                    others.add(note);
+                }
+            }
+            unloaded = findUnloadedNotes(toLoad);
+        }
+
+        for (Note note : others) {
+            //loaded notes of the client app or notes which are just in the message cache
+            fillUnloadedNote(note);
+        }
+
+        if (unloaded.isEmpty()) {
+            return;
+        }
+
+        //the notes are parsed with the refresh parallelism, the pool lives just as long as this call
+        ExecutorService executor = refreshParallelism > 1 ? Executors.newFixedThreadPool(refreshParallelism) : null;
+        try {
+            loadUnloadedNotes(unloaded, executor);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Parses the Kolab XML of the fetched parts, with the executor if there is
+     * one. The folder of the parts must be open.
+     *
+     * @param parts
+     * @param executor - can be null
+     * @throws MessagingException
+     * @throws IOException
+     */
+    void parseKolabParts(List<KolabPart> parts, ExecutorService executor) throws MessagingException, IOException {
+        if (executor == null) {
+            for (KolabPart part : parts) {
+                parseKolabPart(part);
+            }
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(parts.size());
+        for (final KolabPart part : parts) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    parseKolabPart(part);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while parsing notes", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MessagingException) {
+                throw (MessagingException) e.getCause();
+            } else if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void parseKolabPart(KolabPart part) throws MessagingException, IOException {
+        if (part.index < 0) {
+            return;
+        }
+
+        part.note = parseKolabXML(part.openStream());
+        loadAttachments(part);
+        part.contentHash = createContentHash(part.note);
+    }
+
+    /**
+     * Searches the sync state of the folder, which contains the note
+     *
+     * @param noteUid
+     * @return FolderSyncState or null
+     */
+    FolderSyncState findSyncState(String noteUid) {
+        synchronized (syncStates) {
+            for (FolderSyncState state : syncStates.values()) {
+                if (state.getMessageUid(noteUid) != FolderSyncState.UNKNOWN) {
+                    return state;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void fillNote(Note unloaded, Note note) {
+        unloaded.setClassification(note.getClassification());
+        unloaded.setColor(note.getColor());
+        unloaded.setDescription(note.getDescription());
+        unloaded.setSummary(note.getSummary());
+        unloaded.addCategories(note.getCategories().toArray(new Tag[note.getCategories().size()]));
+        unloaded.getAuditInformation().setLastModificationDate(note.getAuditInformation().getLastModificationDate().getTime());
+        unloaded.getAuditInformation().setCreationDate(note.getAuditInformation().getCreationDate().getTime());
+        Collection<Attachment> attachments = note.getAttachments();
+        unloaded.addAttachments(attachments.toArray(new Attachment[attachments.size()]));
+    }
+
+    /**
+     * Loads the collected unloaded notes with one UID FETCH per folder and
+     * Kolab XML part and fills them. The connection is borrowed and released
+     * by this method, the lock of the repository must not be held.
+     *
+     * @param notes - see findUnloadedNotes
+     * @param executor - executor for parsing the Kolab XML of larger folders,
+     * can be null
+     * @param listener - progress listeners are informed about every filled
+     * note
+     * @return number of transfered bytes
+     * @throws MessagingException
+     * @throws IOException
+     */
+    long loadUnloadedNotes(UnloadedNotes notes, ExecutorService executor, Listener... listener) throws MessagingException, IOException {
+        if (notes.isEmpty()) {
+            return 0;
+        }
+
+        Store store = borrowConnection();
+        try {
+            loadUnloadedNotes(store, notes, executor);
+        } finally {
+            releaseConnection(store);
+        }
+        fillLoadedNotes(notes, listener);
+        return notes.getBytes();
+    }
+
+    /**
+     * Collects the unloaded notes with the given UIDs and the positions of
+     * their messages. Notes which are loaded already, or which are not known
+     * in the sync state, are ignored. This is done before a connection is
+     * borrowed, so that a thread never waits for the lock of the repository
+     * while it holds a pooled connection, which the thread with the lock
+     * could wait for.
+     *
+     * @param noteUids
+     * @return UnloadedNotes
+     */
+    synchronized UnloadedNotes findUnloadedNotes(Collection<String> noteUids) {
+        UnloadedNotes notes = new UnloadedNotes();
+        for (String uid : noteUids) {
+            Note unloaded = notesCache.get(uid);
+            if (unloaded == null || noteCompletelyLoaded(unloaded)) {
+                continue;
+            }
+
+            FolderSyncState state = findSyncState(uid);
+            if (state != null) {
+                Map<Long, Note> folderNotes = notes.unloadedPerFolder.get(state.getFolderName());
+                if (folderNotes == null) {
+                    folderNotes = new LinkedHashMap<Long, Note>();
+                    notes.unloadedPerFolder.put(state.getFolderName(), folderNotes);
+                    notes.uidValidities.put(state.getFolderName(), state.getUidValidity());
+                }
+                folderNotes.put(state.getMessageUid(uid), unloaded);
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * Transfers and parses the Kolab XML of the collected notes with one UID
+     * FETCH per folder and Kolab XML part. The lock of the repository is not
+     * needed for this, the notes are filled with fillLoadedNotes afterwards.
+     *
+     * @param store - connection which is used for the transfer
+     * @param notes
+     * @param executor - executor for parsing the Kolab XML of larger folders,
+     * can be null, then the notes are parsed in the calling thread
+     * @throws MessagingException
+     * @throws IOException
+     */
+    void loadUnloadedNotes(Store store, UnloadedNotes notes, ExecutorService executor) throws MessagingException, IOException {
+        for (Map.Entry<String, Map<Long, Note>> entry : notes.unloadedPerFolder.entrySet()) {
+            IMAPFolder folder = (IMAPFolder) store.getFolder(entry.getKey());
+            folder.open(READ_ONLY);
+            try {
+                if (folder.getUIDValidity() != notes.uidValidities.get(entry.getKey())) {
+                    //the folder was recreated, the next sync loads it again
+                    continue;
+                }
+
+                long[] uids = new long[entry.getValue().size()];
+                int i = 0;
+                for (Long uid : entry.getValue().keySet()) {
+                    uids[i++] = uid;
+                }
+
+                List<Message> messages = new ArrayList<Message>();
+                for (Message message : folder.getMessagesByUID(uids)) {
+                    //null if the message was expunged in the meantime
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                }
+
+                FetchProfile fetchProfile = new FetchProfile();
+                fetchProfile.add(FetchProfile.Item.CONTENT_INFO);
+                fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+                folder.fetch(messages.toArray(new Message[messages.size()]), fetchProfile);
+
+                List<KolabPart> parts = new ArrayList<KolabPart>(messages.size());
+                for (Message message : messages) {
+                    parts.add(findKolabPart(message));
+                }
+                fetchKolabParts(folder, parts);
+                parseKolabParts(parts, parts.size() >= PARALLEL_PARSE_THRESHOLD ? executor : null);
+
+                for (KolabPart part : parts) {
+                    if (part.note == null) {
+                        continue;
+                    }
+
+                    if (part.transferContent != null) {
+                        notes.bytes += part.transferContent.getCount();
+                    }
+
+                    putLocator(part);
+                    notes.loaded.add(part);
+                    notes.loadedUids.add(folder.getUID(part.message));
+                    notes.loadedFolders.add(entry.getKey());
+                }
+            } finally {
+                folder.close(false);
+            }
+        }
+    }
+
+    /**
+     * Fills the unloaded notes with the loaded ones. The connection, with
+     * which the notes were loaded, should be released before.
+     *
+     * @param notes
+     * @param listener - progress listeners are informed about every filled
+     * note
+     */
+    synchronized void fillLoadedNotes(UnloadedNotes notes, Listener... listener) {
+        disableChangeListening();
+        try {
+            for (int i = 0; i < notes.loaded.size(); i++) {
+                String folderName = notes.loadedFolders.get(i);
+                long messageUid = notes.loadedUids.get(i);
+                Note unloaded = notes.unloadedPerFolder.get(folderName).get(messageUid);
+                String uid = unloaded.getIdentification().getUid();
+                FolderSyncState state = syncStates.get(folderName);
+
+                //the cache could be changed by another operation in the meantime
+                if (notesCache.get(uid) == unloaded && !noteCompletelyLoaded(unloaded) && state != null && state.getMessageUid(uid) == messageUid) {
+                    fillNote(unloaded, notes.loaded.get(i).note);
+                    state.putNote(messageUid, uid, notes.loaded.get(i).contentHash);
+                    fireNoteLoaded(folderName, unloaded, listener);
+                }
+            }
+        } finally {
+            enableChangeListening();
+        }
+    }
+
+    /**
+     * Adds the attachments to the message. Attachments which are not loaded
+     * yet are streamed from their actual message, which is deleted, but not
+     * expunged before the new message is appended.
+     *
+     * @param message
+     * @param attachments
+     * @param folderName - folder of the new message
+     * @param uidplus - true, if the attachments can be bound to the new message
+     * afterwards
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private void addAttachments(MimeMessage message, Collection<Attachment> attachments, String folderName, boolean uidplus) throws MessagingException, IOException {
+        Object content = message.getContent();
+        if (content instanceof Multipart) {
+            Multipart multipart = (Multipart) content;
+            for (Attachment attachment : attachments) {
+                if (!attachment.isLoaded() && attachment.getLoader() instanceof ImapAttachmentLoader) {
+                    ImapAttachmentLoader loader = (ImapAttachmentLoader) attachment.getLoader();
+                    if (!uidplus || !loader.getFolderName().equals(folderName)) {
+                        //the actual message may be expunged, before the attachment is read, so the data is copied to a temporary file
+                        attachment.setData(attachment.openStream());
+                    }
+                }
+
+                MimeBodyPart newContent = new MimeBodyPart();
+                newContent.setFileName(attachment.getFileName());
+                //the data is streamed into the message and not copied into memory before
+                DataHandler handler = new DataHandler(new AttachmentDataSource(attachment));
+                newContent.setDataHandler(handler);
+                newContent.addHeader("Content-Disposition", attachment.getFileName());
+                newContent.addHeader("Content-ID", attachment.getId());
+                newContent.addHeader("Content-Transfer-Encoding", "base64");
+                multipart.addBodyPart(newContent, 1);
+            }
+        }
+    }
+
+
+    static MimeMessage createMessage(AccountInformation account, Identification ident, AuditInformation audit, DataHandler handler, String type) throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getInstance(System.getProperties()));
+
+        message.setFrom(new InternetAddress(account.getUsername()));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(account.getUsername()));
+        message.setSentDate(audit.getLastModificationDate());
+        message.setSubject(ident.getUid(), "UTF-8");
+
+        message.setHeader("X-Kolab-Type", type);
+        message.setHeader("X-Kolab-Mime-Version", "3.0");
+        message.setHeader("User-Agent", "kolabnotes-java");
+
+        Multipart multipart = new MimeMultipart();
+
+        //Text art
+        MimeBodyPart textPart = new MimeBodyPart();
+        textPart.setText(KOLAB_TEXT, "UTF-8");
+        multipart.addBodyPart(textPart);
+
+        setKolabXML(multipart, handler);
+
+        message.setContent(multipart);
+        message.saveChanges();
+        //Maybe a problem, details: https://issues.kolab.org/show_bug.cgi?id=5109
+        //message.setFlag(Flags.Flag.SEEN, true);
+
+        return message;
+    }
+
+    static void setKolabXML(Multipart content, DataHandler handler) throws MessagingException {
+        if (content == null) {
+            return;
+        }
+        for (int i = 0; i < content.getCount(); i++) {
+            BodyPart bodyPart = content.getBodyPart(i);
+            if (bodyPart.getContentType().startsWith("APPLICATION/VND.KOLAB+XML")) {
+                content.removeBodyPart(i);
+            }
+        }
+        
+        MimeBodyPart newContent = new MimeBodyPart();
+        newContent.setFileName("kolab.xml");
+        newContent.setDataHandler(handler);
+        content.addBodyPart(newContent, 1);
+    }
+
+    /**
+     * Returns the UIDs of the notebooks which have tracked changes, either on
+     * the notebook itself or on one of its notes
+     *
+     * @return Set
+     */
+    Set<String> getChangedNotebooks() {
+        Set<String> ret = new HashSet<String>(deletedNotesCache.keySet());
+        if (eventCache.isEmpty()) {
+            return ret;
+        }
+
+        for (String uid : eventCache.keySet()) {
+            if (notebookCache.containsKey(uid) || deletedNotebookCache.containsKey(uid)) {
+                ret.add(uid);
+            }
+        }
+
+        for (Notebook book : notebookCache.values()) {
+            String bookUid = book.getIdentification().getUid();
+            if (ret.contains(bookUid)) {
+                continue;
+            }
+
+            for (Note note : book.getNotes()) {
+                if (eventCache.containsKey(note.getIdentification().getUid())) {
+                    ret.add(bookUid);
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Writes the changes of a notebook to its folder with as few commands as
+     * possible: one UID STORE for all deleted messages, one APPEND if the
+     * server supports MULTIAPPEND and one UID EXPUNGE if the server supports
+     * UIDPLUS. The deleted messages are expunged after the new messages were
+     * appended, so that CATENATE can still refer to them. After that the
+     * folder is closed and the sync state is updated.
+     *
+     * @param folder - must be open
+     * @param book
+     * @param messagesToDelete
+     * @param messagesToAdd
+     * @param catenates - commands which append messages with attachments of
+     * deleted messages
+     * @param notesToAdd - notes of messagesToAdd, followed by the notes of
+     * catenates
+     * @throws MessagingException
+     */
+    void writeChanges(IMAPFolder folder, Notebook book, List<Message> messagesToDelete, List<Message> messagesToAdd, List<CatenateCommand> catenates, List<Note> notesToAdd) throws MessagingException {
+        long[] deletedUids = new long[messagesToDelete.size()];
+        for (int i = 0; i < deletedUids.length; i++) {
+            deletedUids[i] = folder.getUID(messagesToDelete.get(i));
+        }
+
+        if (deletedUids.length > 0) {
+            folder.doCommand(new UidStoreDeletedCommand(deletedUids));
+        }
+
+        AppendUID[] appended = null;
+        if (messagesToAdd.size() > 1 && hasCapability(folder.getStore(), "MULTIAPPEND")) {
+            MultiAppendCommand appendCommand = new MultiAppendCommand(folder.getFullName(), messagesToAdd);
+            folder.doCommand(appendCommand);
+            appended = appendCommand.getAppendUIDs();
+        } else if (!messagesToAdd.isEmpty()) {
+            appended = folder.appendUIDMessages(messagesToAdd.toArray(new Message[messagesToAdd.size()]));
+        }
+
+        if (!catenates.isEmpty()) {
+            AppendUID[] all = new AppendUID[messagesToAdd.size() + catenates.size()];
+            if (appended != null) {
+                System.arraycopy(appended, 0, all, 0, Math.min(appended.length, messagesToAdd.size()));
+            }
+
+            for (int i = 0; i < catenates.size(); i++) {
+                folder.doCommand(catenates.get(i));
+                all[messagesToAdd.size() + i] = catenates.get(i).getAppendUID();
+            }
+            appended = all;
+        }
+
+        long uidValidity = folder.getUIDValidity();
+        if (deletedUids.length > 0 && hasCapability(folder.getStore(), "UIDPLUS")) {
+            folder.doCommand(new UidExpungeCommand(deletedUids));
+            folder.close(false);
+        } else {
+            //without UIDPLUS all deleted messages of the folder are expunged
+            folder.close(deletedUids.length > 0);
+        }
+
+        updateSyncState(folder.getFullName(), book, uidValidity, deletedUids, appended, notesToAdd, messagesToAdd.size());
+    }
+
+    /**
+     * Records the changes of a merge in the sync state of the folder, so that
+     * the written messages can be found without a refresh. The UIDs of the
+     * new messages are known, if the server supports UIDPLUS (RFC 4315).
+     *
+     * @param folderName
+     * @param book
+     * @param uidValidity
+     * @param deletedUids
+     * @param appended - null, if the UIDs of the new messages are not known
+     * @param notesToAdd
+     * @param catenatedFrom - index of the first note in notesToAdd, which was
+     * appended with CATENATE
+     */
+    void updateSyncState(String folderName, Notebook book, long uidValidity, long[] deletedUids, AppendUID[] appended, List<Note> notesToAdd, int catenatedFrom) {
+        FolderSyncState state = syncStates.get(folderName);
+        if (state == null) {
+            //e.g. a new notebook
+            state = new FolderSyncState(folderName, book.getIdentification().getUid(), book.isShared(), uidValidity);
+            syncStates.put(folderName, state);
+        } else if (state.getUidValidity() != uidValidity) {
+            //the next sync will load the folder completely
+            return;
+        }
+
+        for (long uid : deletedUids) {
+            state.removeMessage(uid);
+        }
+
+        if (appended == null) {
+            return;
+        }
+
+        for (int i = 0; i < appended.length; i++) {
+            if (appended[i] != null && appended[i].uidvalidity == uidValidity) {
+                Note note = notesToAdd.get(i);
+                state.putNote(appended[i].uid, note.getIdentification().getUid(), createContentHash(note));
+                rebindAttachments(note, folderName, uidValidity, appended[i].uid, i >= catenatedFrom);
+            }
+        }
+    }
+
+    /**
+     * Binds the attachments of a note to its new message, so that they are
+     * known as unchanged. The attachments were inserted after the text part
+     * in reverse order, see addAttachments.
+     *
+     * @param note
+     * @param folderName
+     * @param uidValidity
+     * @param messageUid
+     * @param catenated - true, if the body parts were copied from the old
+     * message, so they have their old encoding
+     */
+    void rebindAttachments(Note note, String folderName, long uidValidity, long messageUid, boolean catenated) {
+        AttachmentStorage cache = attachmentCache;
+        Collection<Attachment> attachments = note.getAttachments();
+        int section = attachments.size() + 1;
+        for (Attachment attachment : attachments) {
+            String encoding = catenated ? ((ImapAttachmentLoader) attachment.getLoader()).getEncoding() : "base64";
+            ImapAttachmentLoader loader = new ImapAttachmentLoader(this, folderName, uidValidity, messageUid, Integer.toString(section), encoding);
+
+            if (cache != null && attachment.getLoader() instanceof ImapAttachmentLoader) {
+                String oldKey = ((ImapAttachmentLoader) attachment.getLoader()).getKey();
+                byte[] cached = cache.get(oldKey);
+                if (cached != null) {
+                    cache.put(loader.getKey(), cached);
+                    cache.remove(oldKey);
+                }
+            }
+
+            attachment.rebind(loader);
+            section--;
+        }
+    }
 
-            //Maybe the not is not stored correct in the client app
-            if (NOT_LOADED.equals(note.getSummary())) {
-                note = parseNoteFromMessage(note.getIdentification().getUid());
+    /**
+     * Creates a command, which appends the message of an updated note with
+     * the attachments of its old message. This is just possible, if all
+     * attachments are unchanged.
+     *
+     * @param folder
+     * @param note
+     * @param oldMessage - can be null
+     * @param message - the new message without attachments
+     * @return CatenateCommand or null, if the attachments must be uploaded
+     * @throws MessagingException
+     */
+    CatenateCommand createCatenateCommand(IMAPFolder folder, Note note, Message oldMessage, MimeMessage message) throws MessagingException {
+        if (oldMessage == null || note.getAttachments().isEmpty()) {
+            return null;
+        }
+
+        long oldUid = folder.getUID(oldMessage);
+        //same order as in addAttachments, so that rebindAttachments finds them
+        List<String> sections = new ArrayList<String>();
+        for (Attachment attachment : note.getAttachments()) {
+            Attachment.Loader loader = attachment.getLoader();
+            if (!(loader instanceof ImapAttachmentLoader)) {
+                return null;
             }
 
-            unloaded.setClassification(note.getClassification());
-            unloaded.setColor(note.getColor());
-            unloaded.setDescription(note.getDescription());
-            unloaded.setSummary(note.getSummary());
-            unloaded.addCategories(note.getCategories().toArray(new Tag[note.getCategories().size()]));
-            unloaded.getAuditInformation().setLastModificationDate(note.getAuditInformation().getLastModificationDate().getTime());
-            unloaded.getAuditInformation().setCreationDate(note.getAuditInformation().getCreationDate().getTime());
-            Collection<Attachment> attachments = note.getAttachments();
-            unloaded.addAttachments(attachments.toArray(new Attachment[attachments.size()]));
+            ImapAttachmentLoader imapLoader = (ImapAttachmentLoader) loader;
+            if (!imapLoader.refersTo(folder.getFullName(), oldUid) || imapLoader.getUidValidity() != folder.getUIDValidity()) {
+                return null;
+            }
+            sections.add(0, imapLoader.getSection());
         }
 
-        enableChangeListening();
+        return new CatenateCommand(folder.getFullName(), message, folder.getFullName(), folder.getUIDValidity(), oldUid, sections);
     }
 
-    private void addAttachments(MimeMessage message, Collection<Attachment> attachments) throws MessagingException, IOException {
-        Object content = message.getContent();
-        if (content instanceof Multipart) {
-            Multipart multipart = (Multipart) content;
-            for (Attachment attachment : attachments) {
-                MimeBodyPart newContent = new MimeBodyPart();
-                newContent.setFileName(attachment.getFileName());
-                KolabByteArrayDataSource dataSource = new KolabByteArrayDataSource(attachment);
-                DataHandler handler = new DataHandler(dataSource);
-                newContent.setDataHandler(handler);
-                newContent.addHeader("Content-Disposition", attachment.getFileName());
-                newContent.addHeader("Content-ID", attachment.getId());
-                newContent.addHeader("Content-Transfer-Encoding", "base64");
-                multipart.addBodyPart(newContent, 1);
+    /**
+     * Checks with help of the content hashes, if the message of the note on
+     * the server has the same content as the note. Attachments are unchanged,
+     * as long as they refer to the message.
+     *
+     * @param folder
+     * @param note
+     * @param message
+     * @return true, if the message must not be replaced
+     * @throws MessagingException
+     */
+    boolean isStoredUnchanged(IMAPFolder folder, Note note, Message message) throws MessagingException {
+        return isStoredUnchanged(syncStates.get(folder.getFullName()), folder.getUIDValidity(), folder.getUID(message), note);
+    }
+
+    /**
+     * @param state - sync state of the folder, can be null
+     * @param uidValidity - actual UIDVALIDITY of the folder
+     * @param messageUid
+     * @param note
+     * @return true, if the message must not be replaced
+     */
+    boolean isStoredUnchanged(FolderSyncState state, long uidValidity, long messageUid, Note note) {
+        if (state == null || state.getUidValidity() != uidValidity) {
+            return false;
+        }
+
+        String contentHash = state.getContentHash(messageUid);
+        if (contentHash == null || !contentHash.equals(createContentHash(note))) {
+            return false;
+        }
+
+        for (Attachment attachment : note.getAttachments()) {
+            Attachment.Loader loader = attachment.getLoader();
+            if (!(loader instanceof ImapAttachmentLoader) || !((ImapAttachmentLoader) loader).refersTo(state.getFolderName(), messageUid)) {
+                return false;
             }
         }
+        return true;
     }
 
+    /**
+     * Creates the hash of the content of a note, which is stored on the
+     * server. The hash is built from the fields of the note and not from its
+     * Kolab XML, so that the audit information, which is updated with every
+     * tracked change, and the formatting of the XML, which differs between
+     * the Kolab clients, do not change it.
+     *
+     * @param note
+     * @return String
+     */
+    static String createContentHash(Note note) {
+        StringBuilder content = new StringBuilder();
+        appendField(content, note.getIdentification().getUid());
+        appendField(content, note.getSummary());
+        appendField(content, note.getDescription());
+        appendField(content, note.getClassification() == null ? null : note.getClassification().name());
+        appendField(content, note.getColor() == null ? null : note.getColor().getHexcode());
+
+        Set<String> categories = new TreeSet<String>();
+        for (Tag tag : note.getCategories()) {
+            categories.add(tag.getName());
+        }
+        content.append(categories.size()).append(';');
+        for (String category : categories) {
+            appendField(content, category);
+        }
+
+        Map<String, Attachment> attachments = new TreeMap<String, Attachment>();
+        for (Attachment attachment : note.getAttachments()) {
+            attachments.put(attachment.getId(), attachment);
+        }
+        content.append(attachments.size()).append(';');
+        for (Attachment attachment : attachments.values()) {
+            appendField(content, attachment.getId());
+            appendField(content, attachment.getFileName());
+            appendField(content, attachment.getMimeType());
+        }
+        return ContentHash.of(content.toString().getBytes(UTF8));
+    }
 
-    static MimeMessage createMessage(AccountInformation account, Identification ident, AuditInformation audit, DataHandler handler, String type) throws MessagingException {
-        MimeMessage message = new MimeMessage(Session.getInstance(System.getProperties()));
+    /**
+     * Appends the field with its length, so that the fields can not be
+     * shifted into each other
+     */
+    private static void appendField(StringBuilder content, String field) {
+        if (field == null) {
+            content.append("-;");
+        } else {
+            content.append(field.length()).append(':').append(field).append(';');
+        }
+    }
 
-        message.setFrom(new InternetAddress(account.getUsername()));
-        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(account.getUsername()));
-        message.setSentDate(audit.getLastModificationDate());
-        message.setSubject(ident.getUid(), "UTF-8");
+    /**
+     * Searches the messages of the notes with the given UIDs. The IMAP UIDs
+     * from the sync state of the folder are used, if the state is valid.
+     * Notes which are not in the state are searched with one fetch of the
+     * subjects of all messages. The subject of a Kolab object is its UID, so
+     * the subject must be equal to the note UID. Before the sync state was
+     * used, a subject which just contained the note UID was accepted too.
+     *
+     * @param folder - must be open
+     * @param noteUids
+     * @return Map with the note UID as key
+     * @throws MessagingException
+     */
+    Map<String, Message> findMessages(IMAPFolder folder, Collection<String> noteUids) throws MessagingException {
+        Map<String, Message> ret = new HashMap<String, Message>();
+        if (noteUids.isEmpty()) {
+            return ret;
+        }
+
+        FolderSyncState state = syncStates.get(folder.getFullName());
+        if (state != null && state.getUidValidity() == folder.getUIDValidity()) {
+            List<String> indexedNotes = new ArrayList<String>();
+            List<Long> messageUids = new ArrayList<Long>();
+            for (String noteUid : noteUids) {
+                long messageUid = state.getMessageUid(noteUid);
+                if (messageUid != FolderSyncState.UNKNOWN) {
+                    indexedNotes.add(noteUid);
+                    messageUids.add(messageUid);
+                }
+            }
+
+            if (!messageUids.isEmpty()) {
+                long[] uids = new long[messageUids.size()];
+                for (int i = 0; i < uids.length; i++) {
+                    uids[i] = messageUids.get(i);
+                }
+
+                //missing messages are null
+                Message[] messages = folder.getMessagesByUID(uids);
+                for (int i = 0; i < messages.length; i++) {
+                    if (messages[i] != null) {
+                        ret.put(indexedNotes.get(i), messages[i]);
+                    }
+                }
+            }
+        }
+
+        if (ret.size() < noteUids.size()) {
+            Message[] messages = folder.getMessages();
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.add(FetchProfile.Item.ENVELOPE);
+            fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+            folder.fetch(messages, fetchProfile);
+
+            Map<String, Message> messagesPerSubject = new HashMap<String, Message>();
+            for (Message m : messages) {
+                if (m.getSubject() != null) {
+                    messagesPerSubject.put(m.getSubject().trim(), m);
+                }
+            }
+
+            for (String noteUid : noteUids) {
+                if (!ret.containsKey(noteUid) && messagesPerSubject.containsKey(noteUid)) {
+                    ret.put(noteUid, messagesPerSubject.get(noteUid));
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    protected void initCache() {
+        if (notesCache.isEmpty()) {
+            if (restoreSyncState()) {
+                sync();
+            } else {
+                refresh();
+            }
+        }
+    }
+    
+    @Override
+    protected void addNotebook(String uid, Notebook notebook) {
+        super.addNotebook(uid, notebook);
+    }
+    
+    @Override
+    protected void addNote(String uid, Note note) {
+        super.addNote(uid, note);
+    }
+    
+    void initNotesFromFolderWithAnnotationCheck(FolderDiscovery discovery, Folder folder, FetchProfile fetchProfile, Date parseDate, Listener... listener) throws MessagingException, IOException {
+        //Just handle folders which contain notes
+        if (!isNotesFolder(discovery, folder)) {
+            return;
+        }
+        
+        initNotesFromFolder(folder, fetchProfile, parseDate, false, listener);
+    }
+
+    @Override
+    public boolean noteCompletelyLoaded(Note note) {
+        return !NOT_LOADED.equals(note.getSummary());
+    }
+
+
+    /**
+     * Inits notes from a folder. If the parseDate is given, notes will just be
+     * completly loaded where the sent date is after the parseDate, otherwise,
+     * just empty notes will be created. These notes are searched on the
+     * server, for the empty notes just the UID and two headers are fetched.
+     * The messages of IMAP folders are loaded in chunks.
+     *
+     * @param folder
+     * @param fetchProfile
+     * @param parseDate
+     * @param sharedFolder
+     * @param listener
+     * @throws MessagingException
+     * @throws IOException
+     */
+    Notebook initNotesFromFolder(Folder folder, FetchProfile fetchProfile, Date parseDate, boolean sharedFolder, Listener... listener) throws MessagingException, IOException {
+        try {
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            Identification id = new Identification(createNotebookUid(), "kolabnotes-java");
+            AuditInformation audit = new AuditInformation(now, now);
+
+            Notebook notebook;
+            if (sharedFolder) {
+                SharedNotebook nb = new SharedNotebook(id, audit, Note.Classification.PUBLIC, folder.getFullName());
+                notebook = nb;
+            } else {
+                notebook = new Notebook(id, audit, Note.Classification.PUBLIC, folder.getName());
+            }
+            addNotebook(notebook.getIdentification().getUid(), notebook);
+
+            //the state must be read before the messages, so that changes during the fetch are not lost
+            FolderSyncState syncState = createSyncState(folder, notebook, sharedFolder);
+
+            if (folder instanceof IMAPFolder) {
+                initNotesInChunks((IMAPFolder) folder, notebook, syncState, fetchProfile, parseDate, listener);
+            } else {
+                Message[] messages = folder.getMessages();
+                long bytes = loadMessages(folder, notebook, syncState, fetchProfile, parseDate, messages, null, listener);
+                fireFolderProgress(folder.getFullName(), messages.length, messages.length, bytes, listener);
+            }
+
+            if (syncState != null) {
+                syncStates.put(syncState.getFolderName(), syncState);
+            }
+            return notebook;
+        } catch (Exception e) {
+            for (Listener listen : listener) {
+                listen.onFolderSyncException(folder.getFullName(), e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Loads the messages of the folder in chunks of UIDs. The chunk size is
+     * adapted to the size of the notes, so that a chunk uses at most a
+     * quarter of the memory budget. The IMAPFolder keeps the fetched data of
+     * its messages until it is closed, so the folder is opened again, if the
+     * fetched data exceeds the budget.
+     *
+     * @param folder
+     * @param notebook
+     * @param syncState
+     * @param fetchProfile
+     * @param parseDate
+     * @param listener - progress listeners are informed after every chunk
+     * @throws MessagingException
+     * @throws IOException
+     */
+    void initNotesInChunks(IMAPFolder folder, Notebook notebook, FolderSyncState syncState, FetchProfile fetchProfile, Date parseDate, Listener... listener) throws MessagingException, IOException {
+        UidSearchAllCommand search = new UidSearchAllCommand();
+        folder.doCommand(search);
+        List<Long> uids = new ArrayList<Long>(search.getUids());
+        if (uids.isEmpty()) {
+            return;
+        }
+        Collections.sort(uids);
+
+        Set<Long> sentSince = parseDate == null ? null : searchSentSince(folder, parseDate);
+
+        int chunkSize = refreshChunkSize;
+        long bytesSinceOpen = 0;
+        long bytesTotal = 0;
+        int position = 0;
+        while (position < uids.size()) {
+            List<Long> chunkUids = uids.subList(position, Math.min(uids.size(), position + chunkSize));
+            long[] chunk = new long[chunkUids.size()];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = chunkUids.get(i);
+            }
+            position += chunk.length;
+
+            List<Message> messages = new ArrayList<Message>(chunk.length);
+            for (Message message : folder.getMessagesByUID(chunk)) {
+                //null if the message was expunged in the meantime
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+
+            long bytes = loadMessages(folder, notebook, syncState, fetchProfile, parseDate, messages.toArray(new Message[messages.size()]), sentSince, listener);
+            chunkSize = adaptChunkSize(bytes, chunk.length);
+
+            bytesTotal += bytes;
+            fireFolderProgress(folder.getFullName(), position, uids.size(), bytesTotal, listener);
+
+            bytesSinceOpen += bytes;
+            if (bytesSinceOpen > refreshMemoryBudget && position < uids.size()) {
+                folder.close(false);
+                folder.open(READ_ONLY);
+                bytesSinceOpen = 0;
+
+                if (syncState != null && folder.getUIDValidity() != syncState.getUidValidity()) {
+                    throw new MessagingException("The folder " + folder.getFullName() + " was recreated during the refresh");
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates the size of the next chunk from the estimated memory usage of
+     * the last chunk
+     *
+     * @param bytes - estimated bytes of the last chunk
+     * @param messages - number of messages of the last chunk
+     * @return int
+     */
+    int adaptChunkSize(long bytes, int messages) {
+        if (bytes <= 0 || messages == 0) {
+            return refreshChunkSize;
+        }
+
+        long bytesPerMessage = Math.max(1, bytes / messages);
+        long chunkSize = refreshMemoryBudget / 4 / bytesPerMessage;
+        return (int) Math.max(Math.min(MIN_CHUNK_SIZE, refreshChunkSize), Math.min(refreshChunkSize, chunkSize));
+    }
+
+    /**
+     * Creates the notes of the given messages. If the parseDate is given, just
+     * the notes which were sent after it are loaded completely.
+     *
+     * @param folder
+     * @param notebook
+     * @param syncState - can be null
+     * @param fetchProfile
+     * @param parseDate - can be null
+     * @param messages
+     * @param sentSince - UIDs of the messages, which could be sent after the
+     * parseDate, null if they were not searched on the server
+     * @param listener - progress listeners are informed about every note
+     * @return estimated number of bytes, which the messages use in memory
+     * @throws MessagingException
+     * @throws IOException
+     */
+    long loadMessages(Folder folder, Notebook notebook, FolderSyncState syncState, FetchProfile fetchProfile, Date parseDate, Message[] messages, Set<Long> sentSince, Listener... listener) throws MessagingException, IOException {
+        Message[] candidates = messages;
+        if (parseDate != null && sentSince != null) {
+            //the unloaded notes just need the UID, the note UID (subject) and the date, not the whole envelope and structure
+            FetchProfile stubProfile = new FetchProfile();
+            stubProfile.add(UIDFolder.FetchProfileItem.UID);
+            stubProfile.add("Subject");
+            stubProfile.add("Date");
+
+            List<Message> stubs = new ArrayList<Message>();
+            List<Message> others = new ArrayList<Message>();
+            for (Message m : messages) {
+                if (sentSince.contains(((UIDFolder) folder).getUID(m))) {
+                    others.add(m);
+                } else {
+                    stubs.add(m);
+                }
+            }
+
+            if (!stubs.isEmpty()) {
+                folder.fetch(stubs.toArray(new Message[stubs.size()]), stubProfile);
+            }
+
+            for (Message m : stubs) {
+                String noteUid = decodeSubject(getHeader(m, "Subject"));
+                Date sentDate = parseDate(getHeader(m, "Date"));
+                if (noteUid == null || sentDate == null) {
+                    //headers which are not parseable here are handled with the envelope
+                    others.add(m);
+                } else {
+                    addNotLoadedNote(folder, notebook, syncState, m, noteUid, sentDate, listener);
+                }
+            }
+            candidates = others.toArray(new Message[others.size()]);
+        }
+
+        fetchProfile.add(FetchProfile.Item.CONTENT_INFO);
+        fetchProfile.add(FetchProfile.Item.FLAGS);
+        fetchProfile.add(FetchProfile.Item.ENVELOPE);
+        fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+        folder.fetch(candidates, fetchProfile);
+
+        List<Message> toLoad = new ArrayList<Message>();
+        for (Message m : candidates) {
+            Date sentDate = m.getSentDate();
+            if (parseDate != null && parseDate.after(sentDate)) {
+                addNotLoadedNote(folder, notebook, syncState, m, m.getSubject(), sentDate, listener);
+            } else {
+                toLoad.add(m);
+            }
+        }
+
+        long bytes = (long) messages.length * MESSAGE_OVERHEAD;
+        for (KolabPart part : loadNotes(folder, notebook, toLoad)) {
+            if (syncState != null) {
+                syncState.putNote(((UIDFolder) folder).getUID(part.message), part.getNoteUid(), part.contentHash);
+            }
+            if (part.transferContent != null) {
+                bytes += part.transferContent.getCount();
+            }
+            fireNoteLoaded(folder.getFullName(), part.note, listener);
+        }
+        return bytes;
+    }
+
+    void addNotLoadedNote(Folder folder, Notebook notebook, FolderSyncState syncState, Message m, String noteUid, Date sentDate, Listener... listener) throws MessagingException {
+        putLocator(noteUid, folder, m);
+
+        Timestamp tst = new Timestamp(sentDate.getTime());
+        Identification noteLoadedId = new Identification(noteUid, "kolabnotes-java");
+        AuditInformation notLoadedAudit = new AuditInformation(tst, tst);
+        Note note = new Note(noteLoadedId, notLoadedAudit, Note.Classification.PUBLIC, NOT_LOADED);
+
+        notebook.addNote(note);
+        addNote(note.getIdentification().getUid(), note);
+
+        if (syncState != null) {
+            syncState.putNote(((UIDFolder) folder).getUID(m), note.getIdentification().getUid(), null);
+        }
+        fireNoteLoaded(folder.getFullName(), note, listener);
+    }
+
+    /**
+     * Searches the messages, which were sent on or after the given date, on
+     * the server with UID SEARCH SENTSINCE. SENTSINCE just compares days
+     * without time zones, so the result contains the messages of the day
+     * before too and must be checked again with the exact sent date.
+     *
+     * @param folder
+     * @param date
+     * @return Set of the UIDs of the found messages
+     * @throws MessagingException
+     */
+    static Set<Long> searchSentSince(IMAPFolder folder, Date date) throws MessagingException {
+        Calendar day = Calendar.getInstance();
+        day.setTime(date);
+        day.add(Calendar.DAY_OF_MONTH, -1);
+
+        UidSearchSentSinceCommand search = new UidSearchSentSinceCommand(day.getTime());
+        folder.doCommand(search);
+        return search.getUids();
+    }
+
+    static String getHeader(Message message, String name) throws MessagingException {
+        String[] header = message.getHeader(name);
+        return header == null || header.length == 0 ? null : header[0].trim();
+    }
+
+    /**
+     * Decodes a raw Subject header like Message.getSubject does, so that the
+     * note UID of a stub is the same as the one of a loaded note
+     *
+     * @param subject - raw header, can be null
+     * @return String
+     */
+    static String decodeSubject(String subject) {
+        if (subject == null) {
+            return null;
+        }
+
+        String unfolded = MimeUtility.unfold(subject);
+        try {
+            return MimeUtility.decodeText(unfolded);
+        } catch (UnsupportedEncodingException e) {
+            return unfolded;
+        }
+    }
+
+    static Date parseDate(String date) {
+        if (date == null) {
+            return null;
+        }
+
+        try {
+            return new MailDateFormat().parse(date);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
 
-        message.setHeader("X-Kolab-Type", type);
-        message.setHeader("X-Kolab-Mime-Version", "3.0");
-        message.setHeader("User-Agent", "kolabnotes-java");
+    /**
+     * Creates a UID for a notebook, which is based on the current time, but
+     * unique even if notebooks are created at the same millisecond
+     *
+     * @return String
+     */
+    String createNotebookUid() {
+        while (true) {
+            long last = lastNotebookUid.get();
+            long next = Math.max(last + 1, System.currentTimeMillis());
+            if (lastNotebookUid.compareAndSet(last, next)) {
+                return Long.toString(next);
+            }
+        }
+    }
 
-        Multipart multipart = new MimeMultipart();
+    FolderSyncState createSyncState(Folder folder, Notebook notebook, boolean sharedFolder) throws MessagingException {
+        if (!(folder instanceof IMAPFolder)) {
+            return null;
+        }
 
-        //Text art
-        MimeBodyPart textPart = new MimeBodyPart();
-        textPart.setText(KOLAB_TEXT, "UTF-8");
-        multipart.addBodyPart(textPart);
+        IMAPFolder imapFolder = (IMAPFolder) folder;
+        FolderSyncState state = new FolderSyncState(folder.getFullName(), notebook.getIdentification().getUid(), sharedFolder, imapFolder.getUIDValidity());
+        state.setUidNext(imapFolder.getUIDNext());
+        if (supportsCondstore(folder.getStore())) {
+            state.setHighestModSeq(imapFolder.getHighestModSeq());
+        }
+        return state;
+    }
 
-        setKolabXML(multipart, handler);
+    /**
+     * Loads the notes of the given messages into the notebook. The
+     * BODYSTRUCTURE and the UID of the messages must be fetched already. Just
+     * the Kolab XML parts are transfered, with one command for all messages
+     * which have the Kolab XML in the same body part. Attachments are just
+     * loaded for notes which reference attachments.
+     *
+     * @param folder
+     * @param notebook
+     * @param messages
+     * @return List of the loaded parts, one per message
+     * @throws MessagingException
+     * @throws IOException
+     */
+    List<KolabPart> loadNotes(Folder folder, Notebook notebook, List<Message> messages) throws MessagingException, IOException {
+        List<KolabPart> parts = new ArrayList<KolabPart>(messages.size());
+        for (Message m : messages) {
+            parts.add(findKolabPart(m));
+        }
 
-        message.setContent(multipart);
-        message.saveChanges();
-        //Maybe a problem, details: https://issues.kolab.org/show_bug.cgi?id=5109
-        //message.setFlag(Flags.Flag.SEEN, true);
+        fetchKolabParts(folder, parts);
 
-        return message;
+        for (KolabPart part : parts) {
+            if (part.index >= 0) {
+                part.note = loadNoteFromMessage(part.openStream(), notebook);
+                loadAttachments(part);
+                part.contentHash = createContentHash(part.note);
+            }
+            putLocator(part);
+        }
+        return parts;
     }
 
-    static void setKolabXML(Multipart content, DataHandler handler) throws MessagingException {
-        if (content == null) {
-            return;
+    private void putLocator(KolabPart part) throws MessagingException {
+        putLocator(part.getNoteUid(), part.message.getFolder(), part.message);
+    }
+
+    private void putLocator(String noteUid, Folder folder, Message message) throws MessagingException {
+        if (folder instanceof IMAPFolder) {
+            IMAPFolder imapFolder = (IMAPFolder) folder;
+            messageLocators.put(noteUid, new MessageLocator(folder.getFullName(), imapFolder.getUIDValidity(), imapFolder.getUID(message)));
         }
+    }
+
+    /**
+     * Finds the Kolab XML part of a message with help of its BODYSTRUCTURE,
+     * no content is transfered
+     *
+     * @param message
+     * @return KolabPart
+     * @throws MessagingException
+     * @throws IOException
+     */
+    static KolabPart findKolabPart(Message message) throws MessagingException, IOException {
+        Multipart content = (Multipart) message.getContent();
         for (int i = 0; i < content.getCount(); i++) {
             BodyPart bodyPart = content.getBodyPart(i);
             if (bodyPart.getContentType().startsWith("APPLICATION/VND.KOLAB+XML")) {
-                content.removeBodyPart(i);
+                String encoding = bodyPart instanceof MimeBodyPart ? ((MimeBodyPart) bodyPart).getEncoding() : null;
+                return new KolabPart(message, content, i, encoding);
             }
         }
-        
-        MimeBodyPart newContent = new MimeBodyPart();
-        newContent.setFileName("kolab.xml");
-        newContent.setDataHandler(handler);
-        content.addBodyPart(newContent, 1);
+        return new KolabPart(message, content, -1, null);
     }
 
-    MimeMessage findMessage(String uid, Message[] messages) throws Exception {
-        for (Message m : messages) {
-            if (m.getSubject() != null && m.getSubject().contains(uid)) {
-                return (MimeMessage) m;
+    /**
+     * Fetches the Kolab XML parts with one UID FETCH per body section. Parts
+     * which are not fetched, are read from the message later on
+     *
+     * @param folder
+     * @param parts
+     * @throws MessagingException
+     */
+    void fetchKolabParts(Folder folder, List<KolabPart> parts) throws MessagingException {
+        if (!(folder instanceof IMAPFolder)) {
+            return;
+        }
+        IMAPFolder imapFolder = (IMAPFolder) folder;
+
+        Map<String, List<KolabPart>> partsPerSection = new HashMap<String, List<KolabPart>>();
+        for (KolabPart part : parts) {
+            if (part.index >= 0) {
+                List<KolabPart> sectionParts = partsPerSection.get(part.getSection());
+                if (sectionParts == null) {
+                    sectionParts = new ArrayList<KolabPart>();
+                    partsPerSection.put(part.getSection(), sectionParts);
+                }
+                sectionParts.add(part);
             }
         }
-        return null;
-    }
 
-    @Override
-    protected void initCache() {
-        if (notesCache.isEmpty()) {
-            refresh();
+        for (Map.Entry<String, List<KolabPart>> entry : partsPerSection.entrySet()) {
+            List<KolabPart> sectionParts = entry.getValue();
+            long[] uids = new long[sectionParts.size()];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = imapFolder.getUID(sectionParts.get(i).message);
+            }
+
+            FetchBodyPartCommand command = new FetchBodyPartCommand(uids, entry.getKey());
+            imapFolder.doCommand(command);
+
+            Map<Long, ByteArray> contents = command.getContents();
+            for (int i = 0; i < uids.length; i++) {
+                sectionParts.get(i).transferContent = contents.get(uids[i]);
+            }
         }
     }
-    
-    @Override
-    protected void addNotebook(String uid, Notebook notebook) {
-        super.addNotebook(uid, notebook);
-    }
-    
-    @Override
-    protected void addNote(String uid, Note note) {
-        super.addNote(uid, note);
-    }
-    
-    void initNotesFromFolderWithAnnotationCheck(Folder folder, FetchProfile fetchProfile, Date parseDate) throws MessagingException, IOException {
-        if (folder instanceof IMAPFolder) {
-            GetMetadataCommand metadataCommand = new GetMetadataCommand(folder.getFullName());
-            ((IMAPFolder) folder).doCommand(metadataCommand);
 
-            //Just handle folders which contain notes
-            if (!metadataCommand.isNotesFolder()) {
-                return;
+    private void loadAttachments(KolabPart part) throws MessagingException, IOException {
+        if (part.note == null || part.note.getAttachments().isEmpty()) {
+            return;
+        }
+
+        Folder folder = part.message.getFolder();
+        if (!(folder instanceof IMAPFolder)) {
+            Map<String, byte[]> attachmentContents = new LinkedHashMap<String, byte[]>();
+            for (int i = 0; i < part.content.getCount(); i++) {
+                if (i != part.index) {
+                    createAttachmentContent(part.content.getBodyPart(i), attachmentContents);
+                }
             }
+
+            fillAttachmentOfNote(part.note, attachmentContents);
+            return;
         }
-        
-        initNotesFromFolder(folder, fetchProfile, parseDate, false);
-    }
 
-    @Override
-    public boolean noteCompletelyLoaded(Note note) {
-        return !NOT_LOADED.equals(note.getSummary());
-    }
+        //just the position of the attachments is recorded, the data is loaded on the first access
+        IMAPFolder imapFolder = (IMAPFolder) folder;
+        long messageUid = imapFolder.getUID(part.message);
+        for (int i = 0; i < part.content.getCount(); i++) {
+            if (i == part.index) {
+                continue;
+            }
+
+            MimeBodyPart bodyPart = (MimeBodyPart) part.content.getBodyPart(i);
+            //Content-ID and file name are known from the BODYSTRUCTURE
+            String attId = bodyPart.getContentID();
+            if (attId == null) {
+                attId = bodyPart.getFileName();
+            }
 
+            Attachment attachment = part.note.getAttachment(attId);
+            if (attachment != null) {
+                ImapAttachmentLoader loader = new ImapAttachmentLoader(this, imapFolder.getFullName(), imapFolder.getUIDValidity(), messageUid, Integer.toString(i + 1), bodyPart.getEncoding());
+                attachment.setLoader(loader, bodyPart.getSize());
+            }
+        }
+    }
 
     /**
-     * Inits notes from a folder. If the parseDate is given, notes will just be
-     * completly loaded where the sent date is after the parseDate, otherwise,
-     * just empty notes will be created.
+     * Loads the data of an attachment from the server, or from the attachment
+     * cache
      *
-     * @param folder
-     * @param fetchProfile
-     * @param parseDate
-     * @param sharedFolder
-     * @throws MessagingException
-     * @throws IOException
+     * @param loader
+     * @return byte[]
+     * @throws IOException - if the attachment could not be loaded
      */
-    Notebook initNotesFromFolder(Folder folder, FetchProfile fetchProfile, Date parseDate, boolean sharedFolder, Listener... listener) throws MessagingException, IOException {
-        try {
-            Message[] messages = folder.getMessages();
+    byte[] loadAttachment(ImapAttachmentLoader loader) throws IOException {
+        AttachmentStorage cache = attachmentCache;
+        if (cache != null) {
+            byte[] cached = cache.get(loader.getKey());
+            if (cached != null) {
+                return cached;
+            }
+        }
 
-            fetchProfile.add(FetchProfile.Item.CONTENT_INFO);
-            fetchProfile.add(FetchProfile.Item.FLAGS);
-            fetchProfile.add(FetchProfile.Item.ENVELOPE);
-            folder.fetch(messages, fetchProfile);
+        byte[] data;
+        try {
+            data = fetchAttachment(loader);
+        } catch (MessagingException e) {
+            throw new IOException("Attachment could not be loaded from folder " + loader.getFolderName(), e);
+        }
 
-            Timestamp now = new Timestamp(System.currentTimeMillis());
-            Identification id = new Identification(Long.toString(System.currentTimeMillis()), "kolabnotes-java");
-            AuditInformation audit = new AuditInformation(now, now);
+        if (cache != null) {
+            //equal attachments of different notes share their data
+            data = ContentPool.intern(data);
+            cache.put(loader.getKey(), data);
+        }
+        return data;
+    }
 
-            Notebook notebook;
-            if (sharedFolder) {
-                SharedNotebook nb = new SharedNotebook(id, audit, Note.Classification.PUBLIC, folder.getFullName());
-                notebook = nb;
-            } else {
-                notebook = new Notebook(id, audit, Note.Classification.PUBLIC, folder.getName());
+    /**
+     * Opens a stream on an attachment on the server. The body part is
+     * transfered in blocks, while the stream is read. The folder and the
+     * connection are released, when the stream is closed.
+     *
+     * @param loader
+     * @return InputStream
+     * @throws IOException - if the attachment could not be opened
+     */
+    InputStream openAttachment(ImapAttachmentLoader loader) throws IOException {
+        AttachmentStorage cache = attachmentCache;
+        if (cache != null) {
+            byte[] cached = cache.get(loader.getKey());
+            if (cached != null) {
+                return new ByteArrayInputStream(cached);
             }
-            addNotebook(notebook.getIdentification().getUid(), notebook);
+        }
 
-            for (Message m : messages) {
-                messageCache.put(m.getSubject(), m);
-                Date sentDate = m.getSentDate();
-                if (parseDate != null && parseDate.after(sentDate)) {
-                    Timestamp tst = new Timestamp(sentDate.getTime());
-                    Identification noteLoadedId = new Identification(m.getSubject(), "kolabnotes-java");
-                    AuditInformation notLoadedAudit = new AuditInformation(tst, tst);
-                    Note note = new Note(noteLoadedId, notLoadedAudit, Note.Classification.PUBLIC, NOT_LOADED);
-
-                    notebook.addNote(note);
-                    addNote(note.getIdentification().getUid(), note);
-                } else {
+        Store active = activeStore.get();
+        Store store = null;
+        IMAPFolder folder = null;
+        boolean opened = false;
+        try {
+            store = active == null ? connectionPool.borrow() : active;
+            folder = (IMAPFolder) store.getFolder(loader.getFolderName());
+            folder.open(READ_ONLY);
 
-                    Multipart content = (Multipart) m.getContent();
+            if (folder.getUIDValidity() != loader.getUidValidity()) {
+                throw new IOException("Folder " + loader.getFolderName() + " was recreated, the attachment is not available anymore");
+            }
 
-                    Map<String, byte[]> attachmentContents = new LinkedHashMap<String, byte[]>();
+            IMAPMessage message = (IMAPMessage) folder.getMessageByUID(loader.getMessageUid());
+            if (message == null) {
+                throw new IOException("The message of the attachment was removed from folder " + loader.getFolderName());
+            }
 
-                    loadFromMessage(content, notebook, attachmentContents);
-                }
+            InputStream content = new IMAPInputStream(message, loader.getSection(), -1, true);
+            if (loader.getEncoding() != null) {
+                content = MimeUtility.decode(content, loader.getEncoding());
             }
-            return notebook;
-        } catch (Exception e) {
-            for (Listener listen : listener) {
-                listen.onFolderSyncException(folder.getFullName(), e);
+
+            InputStream stream = new AttachmentInputStream(content, folder, active == null ? store : null);
+            opened = true;
+            return stream;
+        } catch (MessagingException e) {
+            throw new IOException("Attachment could not be opened in folder " + loader.getFolderName(), e);
+        } finally {
+            if (!opened) {
+                closeAttachment(folder, active == null ? store : null);
             }
-            return null;
         }
     }
 
-    private void loadFromMessage(Multipart content, Notebook notebook, Map<String, byte[]> attachmentContents) throws IOException, MessagingException {
-        Note note = null;
-        for (int i = 0; i < content.getCount(); i++) {
-            BodyPart bodyPart = content.getBodyPart(i);
-            if (bodyPart.getContentType().startsWith("APPLICATION/VND.KOLAB+XML")) {
-                note = loadNoteFromMessage(bodyPart, notebook);
-            } else {
-                createAttachmentContent(bodyPart, attachmentContents);
+    void closeAttachment(Folder folder, Store borrowedStore) {
+        try {
+            if (folder != null && folder.isOpen()) {
+                folder.close(false);
+            }
+        } catch (MessagingException e) {
+            //the folder is not used anymore
+        } finally {
+            if (borrowedStore != null) {
+                connectionPool.release(borrowedStore);
             }
         }
+    }
+
+    private byte[] fetchAttachment(ImapAttachmentLoader loader) throws MessagingException, IOException {
+        //during a remote operation, e.g. a merge which uploads the attachment again, the borrowed store is used
+        Store active = activeStore.get();
+        Store store = active == null ? connectionPool.borrow() : active;
+        try {
+            IMAPFolder folder = (IMAPFolder) store.getFolder(loader.getFolderName());
+            folder.open(READ_ONLY);
+            try {
+                if (folder.getUIDValidity() != loader.getUidValidity()) {
+                    throw new IOException("Folder " + loader.getFolderName() + " was recreated, the attachment is not available anymore");
+                }
 
-        fillAttachmentOfNote(note, attachmentContents);
+                FetchBodyPartCommand command = new FetchBodyPartCommand(new long[]{loader.getMessageUid()}, loader.getSection());
+                folder.doCommand(command);
+
+                ByteArray content = command.getContents().get(loader.getMessageUid());
+                if (content == null) {
+                    throw new IOException("The message of the attachment was removed from folder " + loader.getFolderName());
+                }
+                return readAll(decode(content, loader.getEncoding()), getDecodedSize(content, loader.getEncoding()));
+            } finally {
+                folder.close(false);
+            }
+        } finally {
+            if (active == null) {
+                connectionPool.release(store);
+            }
+        }
     }
 
     private Note parseNoteFromMessage(String noteUID) {
-        Note note = null;
-        Message message = messageCache.get(noteUID);
-        if (message == null) {
-            return null;
-        }
         try {
-            Folder folder = message.getFolder();
-            
-            if (!folder.isOpen()) {
-                folder.open(READ_ONLY);
-            }
-            
-            Map<String, byte[]> attachmentContents = new LinkedHashMap<String, byte[]>();
-            Multipart content = (Multipart) message.getContent();
-            for (int i = 0; i < content.getCount(); i++) {
-                BodyPart bodyPart = content.getBodyPart(i);
-                if (bodyPart.getContentType().startsWith("APPLICATION/VND.KOLAB+XML")) {
-                    InputStream inputStream = bodyPart.getInputStream();
-                    note = (Note) parser.parse(inputStream);
-                    inputStream.close();
-
-                    Set<RemoteTags.TagDetails> tagsFromNote = this.remoteTags.getTagsFromNote(note.getIdentification().getUid());
-                    for (RemoteTags.TagDetails tag : tagsFromNote) {
-                        note.addCategories(tag.getTag());
+            MessageLocator locator;
+            synchronized (this) {
+                locator = messageLocators.get(noteUID);
+                if (locator == null) {
+                    //e.g. because the repository was initialized from a SyncStateStore
+                    FolderSyncState state = findSyncState(noteUID);
+                    if (state == null) {
+                        return null;
                     }
-                } else {
-                    createAttachmentContent(bodyPart, attachmentContents);
+                    locator = new MessageLocator(state.getFolderName(), state.getUidValidity(), state.getMessageUid(noteUID));
                 }
             }
 
-            fillAttachmentOfNote(note, attachmentContents);
+            return parseNote(locator);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-        return note;
+    }
+
+    /**
+     * Resolves the message of the locator again and loads its note. Like in
+     * loadUnloadedNotes, just the Kolab XML part is transfered, the
+     * attachments are loaded on their first access.
+     *
+     * @param locator
+     * @return Note or null, if the message is not found
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private Note parseNote(MessageLocator locator) throws MessagingException, IOException {
+        Store store = borrowConnection();
+        IMAPFolder folder = null;
+        try {
+            folder = (IMAPFolder) store.getFolder(locator.getFolderName());
+            folder.open(READ_ONLY);
+
+            if (folder.getUIDValidity() != locator.getUidValidity()) {
+                return null;
+            }
+
+            Message message = folder.getMessageByUID(locator.getMessageUid());
+            if (message == null) {
+                return null;
+            }
+
+            KolabPart part = findKolabPart(message);
+            fetchKolabParts(folder, Collections.singletonList(part));
+            if (part.index >= 0) {
+                part.note = parseKolabXML(part.openStream());
+                loadAttachments(part);
+            }
+            return part.note;
+        } finally {
+            if (folder != null && folder.isOpen()) {
+                folder.close(false);
+            }
+            releaseConnection(store);
+        }
     }
 
     private void fillAttachmentOfNote(Note note, Map<String, byte[]> attachmentContents) {
@@ -676,26 +3132,76 @@ public class ImapNotesRepository extends LocalNotesRepository implements RemoteN
             attId = header[0];
         }
 
-        byte[] buffer = new byte[1024];
-        InputStream inputStream = bodyPart.getInputStream();
+        attachmentContents.put(attId, readAll(bodyPart.getInputStream(), Math.max(bodyPart.getSize(), 0)));
+    }
 
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        int bytes;
-        while ((bytes = inputStream.read(buffer)) != -1) {
-            output.write(buffer, 0, bytes);
+    /**
+     * Reads the stream completely and closes it
+     *
+     * @param inputStream
+     * @param expectedSize - expected number of bytes, so that the buffer must
+     * not grow while reading
+     * @return byte[]
+     * @throws IOException
+     */
+    static byte[] readAll(InputStream inputStream, int expectedSize) throws IOException {
+        byte[] buffer = new byte[8192];
+        ByteArrayOutputStream output = new ByteArrayOutputStream(expectedSize + 1);
+        try {
+            int bytes;
+            while ((bytes = inputStream.read(buffer)) != -1) {
+                output.write(buffer, 0, bytes);
+            }
+        } finally {
+            inputStream.close();
         }
+        return output.toByteArray();
+    }
+
+    /**
+     * Decodes content, which was fetched without decoding of the
+     * Content-Transfer-Encoding
+     *
+     * @param content
+     * @param encoding - can be null
+     * @return InputStream
+     * @throws MessagingException
+     */
+    static InputStream decode(ByteArray content, String encoding) throws MessagingException {
+        //reads directly from the buffer of the response
+        InputStream in = content.toByteArrayInputStream();
+        return encoding == null ? in : MimeUtility.decode(in, encoding);
+    }
 
-        attachmentContents.put(attId, output.toByteArray());
-        inputStream.close();
-        output.close();
+    /**
+     * Estimates the size of the decoded content, base64 needs 4 bytes for 3
+     * bytes of data
+     *
+     * @param content
+     * @param encoding - can be null
+     * @return int
+     */
+    static int getDecodedSize(ByteArray content, String encoding) {
+        if ("base64".equalsIgnoreCase(encoding)) {
+            return content.getCount() / 4 * 3;
+        }
+        return content.getCount();
     }
 
-    private Note loadNoteFromMessage(BodyPart bodyPart, Notebook notebook) throws IOException, MessagingException {
-        InputStream inputStream = bodyPart.getInputStream();
-        Note note = (Note) parser.parse(inputStream);
-        inputStream.close();
+    private Note loadNoteFromMessage(InputStream content, Notebook notebook) throws IOException, MessagingException {
+        Note note = parseKolabXML(content);
         notebook.addNote(note);
         addNote(note.getIdentification().getUid(), note);
+        return note;
+    }
+
+    private Note parseKolabXML(InputStream content) throws IOException {
+        Note note;
+        try {
+            note = (Note) parser.parse(content);
+        } finally {
+            content.close();
+        }
 
         Set<RemoteTags.TagDetails> tagsFromNote = this.remoteTags.getTagsFromNote(note.getIdentification().getUid());
         for (RemoteTags.TagDetails tag : tagsFromNote) {
@@ -703,4 +3209,99 @@ public class ImapNotesRepository extends LocalNotesRepository implements RemoteN
         }
         return note;
     }
+
+    /**
+     * The Kolab XML part of a message
+     */
+    /**
+     * Unloaded notes, which are loaded together: they are collected and filled
+     * under the lock of the repository, but loaded without it
+     */
+    static class UnloadedNotes {
+
+        private final Map<String, Long> uidValidities = new HashMap<String, Long>();
+        private final Map<String, Map<Long, Note>> unloadedPerFolder = new LinkedHashMap<String, Map<Long, Note>>();
+        private final List<KolabPart> loaded = new ArrayList<KolabPart>();
+        private final List<Long> loadedUids = new ArrayList<Long>();
+        private final List<String> loadedFolders = new ArrayList<String>();
+        private long bytes;
+
+        boolean isEmpty() {
+            return unloadedPerFolder.isEmpty();
+        }
+
+        /**
+         * @return number of transfered bytes
+         */
+        long getBytes() {
+            return bytes;
+        }
+    }
+
+    static class KolabPart {
+
+        final Message message;
+        final Multipart content;
+        //index of the part in the multipart, -1 if the message has no Kolab XML
+        final int index;
+        final String encoding;
+        //content as it is transfered, without decoding of the Content-Transfer-Encoding
+        ByteArray transferContent;
+        Note note;
+        String contentHash;
+
+        KolabPart(Message message, Multipart content, int index, String encoding) {
+            this.message = message;
+            this.content = content;
+            this.index = index;
+            this.encoding = encoding;
+        }
+
+        String getSection() {
+            return Integer.toString(index + 1);
+        }
+
+        String getNoteUid() throws MessagingException {
+            return note == null ? message.getSubject() : note.getIdentification().getUid();
+        }
+
+        InputStream openStream() throws MessagingException, IOException {
+            if (transferContent == null) {
+                return content.getBodyPart(index).getInputStream();
+            }
+
+            return decode(transferContent, encoding);
+        }
+    }
+
+    /**
+     * Stream on an attachment, which releases the folder and the connection on
+     * close
+     */
+    class AttachmentInputStream extends FilterInputStream {
+
+        private final Folder folder;
+        private final Store borrowedStore;
+        private boolean closed;
+
+        AttachmentInputStream(InputStream in, Folder folder, Store borrowedStore) {
+            super(in);
+            this.folder = folder;
+            this.borrowedStore = borrowedStore;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                super.close();
+            } finally {
+                closeAttachment(folder, borrowedStore);
+            }
+        }
+    }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import korex.mail.Folder;
+import korex.mail.MessagingException;
+import korex.mail.Store;
+import org.kore.kolab.notes.AccountInformation;
+import org.kore.kolab.notes.RemoteNotesRepository;
+
+/**
+ * Watches folders with IMAP IDLE (RFC 2177). Every folder is opened on its own
+ * connection of a dedicated store, so that the connection pool is not
+ * blocked. After every notification the repository is asked to sync the
+ * folder. The sync state is saved delayed, so that a series of notifications
+ * is saved just once.
+ *
+ * @author Konrad Renner
+ */
+class ImapPushWatcher {
+
+    //RFC 2177 recommends to renew the IDLE command at least every 29 minutes
+    static final long RENEW_INTERVAL = 25 * 60 * 1000;
+    static final long SAVE_DELAY = 30 * 1000;
+    //waiting times after failures, doubled with every failure in a row
+    static final long MIN_RETRY_DELAY = 1000;
+    static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+
+    private final ImapNotesRepository repository;
+    private final AccountInformation account;
+    private final RemoteNotesRepository.PushListener listener;
+    private final List<IMAPFolder> folders;
+    private Store store;
+    private Timer renewTimer;
+    private TimerTask pendingSave;
+    private volatile boolean running;
+
+    ImapPushWatcher(ImapNotesRepository repository, AccountInformation account, RemoteNotesRepository.PushListener listener) {
+        this.repository = repository;
+        this.account = account;
+        this.listener = listener;
+        this.folders = new ArrayList<IMAPFolder>();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    void start(Collection<String> folderNames) throws MessagingException {
+        store = ImapNotesRepository.openConnection(account);
+        if (!(store instanceof IMAPStore) || !((IMAPStore) store).hasCapability("IDLE")) {
+            store.close();
+            throw new MessagingException("The server does not support IDLE");
+        }
+
+        for (String name : folderNames) {
+            IMAPFolder folder = (IMAPFolder) store.getFolder(name);
+            folder.open(Folder.READ_ONLY);
+            folders.add(folder);
+        }
+
+        synchronized (this) {
+            renewTimer = new Timer("IMAP IDLE renew " + account.getHost(), true);
+            renewTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    renew();
+                }
+            }, RENEW_INTERVAL, RENEW_INTERVAL);
+        }
+
+        running = true;
+        for (IMAPFolder folder : folders) {
+            Thread thread = new Thread(new Watch(folder), "IMAP IDLE " + folder.getFullName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    RemoteNotesRepository.PushListener getListener() {
+        return listener;
+    }
+
+    void stop() {
+        running = false;
+        boolean save;
+        synchronized (this) {
+            if (renewTimer != null) {
+                renewTimer.cancel();
+                renewTimer = null;
+            }
+            save = pendingSave != null;
+            pendingSave = null;
+        }
+
+        if (save) {
+            repository.savePushedState(listener);
+        }
+
+        if (store != null) {
+            //closing the store aborts the IDLE commands, so the threads will stop
+            ImapConnectionPool.closeQuietly(store);
+            store = null;
+        }
+        folders.clear();
+    }
+
+    /**
+     * Saves the sync state after SAVE_DELAY, if no save is pending already
+     */
+    synchronized void scheduleSave() {
+        if (pendingSave != null || renewTimer == null) {
+            return;
+        }
+
+        pendingSave = new TimerTask() {
+            @Override
+            public void run() {
+                savePending();
+            }
+        };
+        renewTimer.schedule(pendingSave, SAVE_DELAY);
+    }
+
+    void savePending() {
+        synchronized (this) {
+            if (pendingSave == null) {
+                return;
+            }
+            pendingSave = null;
+        }
+        repository.savePushedState(listener);
+    }
+
+    static long nextRetryDelay(long delay) {
+        return delay == 0 ? MIN_RETRY_DELAY : Math.min(MAX_RETRY_DELAY, delay * 2);
+    }
+
+    void renew() {
+        for (IMAPFolder folder : new ArrayList<IMAPFolder>(folders)) {
+            try {
+                //every use of the folder by another thread terminates the IDLE command, the watch starts a new one
+                folder.getMessageCount();
+            } catch (MessagingException e) {
+                listener.onFolderSyncException(folder.getFullName(), e);
+            }
+        }
+    }
+
+    class Watch implements Runnable {
+
+        private final IMAPFolder folder;
+
+        Watch(IMAPFolder folder) {
+            this.folder = folder;
+        }
+
+        @Override
+        public void run() {
+            String name = folder.getFullName();
+            long retryDelay = 0;
+            while (running) {
+                boolean updated;
+                try {
+                    folder.idle(true);
+
+                    updated = !running || repository.pushUpdate(name, listener);
+                    if (running) {
+                        scheduleSave();
+                    }
+                } catch (Exception e) {
+                    if (running) {
+                        listener.onFolderSyncException(name, e);
+                    }
+
+                    if (!folder.isOpen()) {
+                        //the connection is lost, just this folder is not watched anymore
+                        return;
+                    }
+                    updated = false;
+                }
+
+                if (updated) {
+                    retryDelay = 0;
+                } else if (running) {
+                    //a failure is most likely repeated immediately, so the server is not asked again at once
+                    retryDelay = nextRetryDelay(retryDelay);
+                    try {
+                        Thread.sleep(retryDelay);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+/**
+ * Position of the message of a note on the server. It is kept instead of the
+ * Message object, which holds its folder, envelope and content in memory, and
+ * the message is resolved again when it is needed.
+ *
+ * @author Konrad Renner
+ */
+class MessageLocator {
+
+    private final String folderName;
+    private final long uidValidity;
+    private final long messageUid;
+
+    MessageLocator(String folderName, long uidValidity, long messageUid) {
+        this.folderName = folderName;
+        this.uidValidity = uidValidity;
+        this.messageUid = messageUid;
+    }
+
+    String getFolderName() {
+        return folderName;
+    }
+
+    long getUidValidity() {
+        return uidValidity;
+    }
+
+    long getMessageUid() {
+        return messageUid;
+    }
+}
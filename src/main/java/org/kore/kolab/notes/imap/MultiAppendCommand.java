@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.Literal;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.AppendUID;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.util.CRLFOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import korex.mail.Message;
+import korex.mail.MessagingException;
+
+/**
+ * Appends all messages with one "APPEND" command, the server must support
+ * MULTIAPPEND (RFC 3502)
+ *
+ * @author Konrad Renner
+ */
+public class MultiAppendCommand implements IMAPFolder.ProtocolCommand {
+
+    private static final Pattern APPENDUID = Pattern.compile("\\[APPENDUID (\\d+) ([0-9:,]+)\\]", Pattern.CASE_INSENSITIVE);
+
+    private final String folderName;
+    private final List<? extends Message> messages;
+    private Response result;
+
+    public MultiAppendCommand(String folderName, List<? extends Message> messages) {
+        this.folderName = folderName;
+        this.messages = messages;
+    }
+
+    @Override
+    public Object doCommand(IMAPProtocol imapp) throws ProtocolException {
+        Argument command = new Argument();
+        command.writeString(BASE64MailboxEncoder.encode(folderName));
+
+        List<MessageLiteral> literals = new ArrayList<MessageLiteral>(messages.size());
+        try {
+            for (Message message : messages) {
+                MessageLiteral literal = new MessageLiteral(message);
+                literals.add(literal);
+                command.writeBytes(literal);
+            }
+
+            Response[] response = imapp.command("APPEND", command);
+            imapp.notifyResponseHandlers(response);
+            result = response[response.length - 1];
+            imapp.handleResult(result);
+            return null;
+        } finally {
+            for (MessageLiteral literal : literals) {
+                literal.discard();
+            }
+        }
+    }
+
+    /**
+     * @return the tagged response of the server, which contains the
+     * APPENDUID response code, if the server supports UIDPLUS
+     */
+    public Response getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the UIDs of the appended messages from the APPENDUID response
+     * code (RFC 4315), in the same order as the messages
+     *
+     * @return AppendUID[] or null, if the server did not send APPENDUID
+     */
+    public AppendUID[] getAppendUIDs() {
+        return parseAppendUIDs(result, messages.size());
+    }
+
+    /**
+     * Parses the APPENDUID response code (RFC 4315) of a tagged response
+     *
+     * @param result - can be null
+     * @param count - number of appended messages
+     * @return AppendUID[] or null, if the response has no APPENDUID for the
+     * given number of messages
+     */
+    static AppendUID[] parseAppendUIDs(Response result, int count) {
+        return result == null ? null : parseAppendUIDs(result.toString(), count);
+    }
+
+    static AppendUID[] parseAppendUIDs(String result, int count) {
+        if (result == null) {
+            return null;
+        }
+
+        Matcher matcher = APPENDUID.matcher(result);
+        if (!matcher.find()) {
+            return null;
+        }
+
+        long uidValidity;
+        List<Long> uids;
+        try {
+            uidValidity = Long.parseLong(matcher.group(1));
+            uids = parseUidSet(matcher.group(2), count);
+        } catch (NumberFormatException e) {
+            //the UIDs are just an optimization, so a broken response code is ignored
+            return null;
+        }
+        if (uids == null || uids.size() != count) {
+            return null;
+        }
+
+        AppendUID[] ret = new AppendUID[uids.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = new AppendUID(uidValidity, uids.get(i));
+        }
+        return ret;
+    }
+
+    /**
+     * Parses a uid-set of RFC 4315, ranges can be in reversed order
+     *
+     * @param uidSet
+     * @param limit - maximum number of expected UIDs
+     * @return List of the UIDs in the order of the set or null, if the set
+     * contains more UIDs than the limit
+     * @throws NumberFormatException - if the set is not valid
+     */
+    static List<Long> parseUidSet(String uidSet, int limit) {
+        List<Long> ret = new ArrayList<Long>();
+        for (String part : uidSet.split(",")) {
+            int range = part.indexOf(':');
+            if (range < 0) {
+                ret.add(Long.parseLong(part));
+            } else {
+                long start = Long.parseLong(part.substring(0, range));
+                long end = Long.parseLong(part.substring(range + 1));
+                if (Math.abs(end - start) >= limit) {
+                    return null;
+                }
+
+                long step = start <= end ? 1 : -1;
+                for (long uid = start; uid != end + step; uid += step) {
+                    ret.add(uid);
+                }
+            }
+
+            if (ret.size() > limit) {
+                return null;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * The size of a literal must be sent before its content, so the message
+     * is spooled to a temporary file. Like this just one message at a time is
+     * in memory, even if the attachments are streamed.
+     */
+    static class MessageLiteral implements Literal {
+
+        private final File file;
+        private final int size;
+
+        MessageLiteral(Message message) throws ProtocolException {
+            try {
+                this.file = File.createTempFile("kolabnotes-append", ".tmp");
+            } catch (IOException e) {
+                throw new ProtocolException("Unable to write message: " + e.getMessage());
+            }
+
+            try {
+                //IMAP literals must use CRLF as line separator
+                OutputStream os = new CRLFOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                try {
+                    message.writeTo(os);
+                } finally {
+                    os.close();
+                }
+            } catch (IOException e) {
+                discard();
+                throw new ProtocolException("Unable to write message: " + e.getMessage());
+            } catch (MessagingException e) {
+                discard();
+                throw new ProtocolException("Unable to write message: " + e.getMessage());
+            }
+
+            if (file.length() > Integer.MAX_VALUE) {
+                discard();
+                throw new ProtocolException("The message is too large for a literal: " + file.length());
+            }
+            this.size = (int) file.length();
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    os.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        void discard() {
+            file.delete();
+        }
+    }
+}
@@ -58,9 +58,26 @@ public class RemoteTags {
     private final String rootFolder;
     
     private final Set<String> tagsForDeletion;
+    private final ImapConnectionPool connectionPool;
+    private String configurationFolderName;
+    private boolean localChanges;
+    private FolderDiscovery folderDiscovery = FolderDiscovery.INCOMPLETE;
+    private FolderMetadataCache folderMetadataCache;
 
     public RemoteTags(KolabParser parser, AccountInformation login, String rootFolder) {
+        this(parser, login, rootFolder, null);
+    }
+
+    /**
+     * @param parser
+     * @param login
+     * @param rootFolder
+     * @param connectionPool - pool from which connections are borrowed, if
+     * null every operation opens its own connection
+     */
+    public RemoteTags(KolabParser parser, AccountInformation login, String rootFolder, ImapConnectionPool connectionPool) {
         this.account = login;
+        this.connectionPool = connectionPool;
         this.tagsPerNote = new HashMap<String, Set<TagDetails>>();
         this.tagPerTagname = new HashMap<String, TagDetails>();
         this.parser = parser;
@@ -79,6 +96,7 @@ public class RemoteTags {
     }
     
     public void applyLocalChanges(Tag... tags) {
+        localChanges = true;
         for (Tag tag : tags) {
             for (TagDetails detail : remoteTags) {
                 if (detail.getIdentification().getUid().equals(tag.getIdentification().getUid())) {
@@ -92,6 +110,7 @@ public class RemoteTags {
     }
     
     public void deleteTags(Identification... ident) {
+        localChanges = true;
         for (Identification i : ident) {
             tagsForDeletion.add(i.getUid());
         }
@@ -126,6 +145,7 @@ public class RemoteTags {
      * @param tags
      */
     public void attachTags(String uid, Tag... tags) {
+        localChanges = true;
         for (Tag tag : tags) {
             TagDetails actDetail = this.tagPerTagname.get(tag.getName());
             if (actDetail == null) {
@@ -156,6 +176,7 @@ public class RemoteTags {
      * @param uid
      */
     public void removeTags(String uid) {
+        localChanges = true;
         Set<TagDetails> tags = getTagsFromNote(uid);
 
         for (TagDetails tag : tags) {
@@ -166,7 +187,7 @@ public class RemoteTags {
 
     Store connect(Store store) throws MessagingException {
         if (store == null) {
-            store = ImapNotesRepository.openConnection(account);
+            store = connectionPool == null ? ImapNotesRepository.openConnection(account) : connectionPool.borrow();
         }
 
         if (!store.isConnected()) {
@@ -175,6 +196,14 @@ public class RemoteTags {
         return store;
     }
 
+    void disconnect(Store store) throws MessagingException {
+        if (connectionPool == null) {
+            store.close();
+        } else {
+            connectionPool.release(store);
+        }
+    }
+
     void init(Store store) {
         if (this.remoteTags != null) {
             return;
@@ -182,13 +211,15 @@ public class RemoteTags {
 
         this.remoteTags = new LinkedHashSet<TagDetails>();
 
+        Store lstore = null;
         try {
-            Store lstore = connect(store);
+            lstore = connect(store);
 
             Folder rFolder = lstore.getDefaultFolder();
             Folder configFolder = searchConfigFolder(rFolder);
 
             if (configFolder != null) {
+                configurationFolderName = configFolder.getFullName();
                 configFolder.open(Folder.READ_ONLY);
 
                 Message[] messages = configFolder.getMessages();
@@ -214,16 +245,39 @@ public class RemoteTags {
                 
                 configFolder.close(false);
             }
-
-            if (store == null) {
-                lstore.close();
-            }
         } catch (Exception e) {
+            if (folderMetadataCache != null) {
+                //maybe the configuration folder was moved
+                folderMetadataCache.invalidateFolderTypes(account);
+            }
             throw new IllegalStateException(e);
+        } finally {
+            if (store == null && lstore != null) {
+                try {
+                    disconnect(lstore);
+                } catch (MessagingException e) {
+                    //the connection is not used anymore
+                }
+            }
         }
 
     }
 
+    /**
+     * @return true, if there are changes which are not merged with the server
+     */
+    public boolean hasLocalChanges() {
+        return localChanges;
+    }
+
+    /**
+     * @return the full name of the folder where the tags are stored, or null
+     * if the folder was not found during the initialization
+     */
+    String getConfigurationFolderName() {
+        return configurationFolderName;
+    }
+
     TagDetails getFromMessage(Message message) throws IOException, MessagingException {
         Multipart content = (Multipart) message.getContent();
         for (int i = 0; i < content.getCount(); i++) {
@@ -245,8 +299,9 @@ public class RemoteTags {
     void merge(Store store) {
         init(store);
 
+        Store lstore = null;
         try {
-            Store lstore = connect(store);
+            lstore = connect(store);
 
             Folder rFolder = lstore.getDefaultFolder();
             Folder configFolder = searchConfigFolder(rFolder);
@@ -265,6 +320,10 @@ public class RemoteTags {
                 if (account.isFolderAnnotationEnabled()) {
                     ((IMAPFolder) configFolder).doCommand(new SetConfigurationCommand(configFolder.getFullName()));
                 }
+
+                if (folderMetadataCache != null) {
+                    folderMetadataCache.invalidateFolderTypes(account);
+                }
             }
             
             if (!configFolder.isOpen()) {
@@ -311,11 +370,17 @@ public class RemoteTags {
 
             ((IMAPFolder) configFolder).addMessages(messagesToAdd.toArray(new Message[messagesToAdd.size()]));
             configFolder.close(true);
-            if (store == null) {
-                lstore.close();
-            }
+            localChanges = false;
         } catch (Exception e) {
             throw new IllegalStateException(e);
+        } finally {
+            if (store == null && lstore != null) {
+                try {
+                    disconnect(lstore);
+                } catch (MessagingException e) {
+                    //the connection is not used anymore
+                }
+            }
         }
     }
 
@@ -357,13 +422,45 @@ public class RemoteTags {
         }
     }
 
+    /**
+     * Sets the folder types of the account, which were discovered before, so
+     * that the configuration folder must not be searched with one command per
+     * folder, and the cache in which the location of the configuration folder
+     * is kept
+     *
+     * @param folderDiscovery
+     * @param folderMetadataCache - can be null
+     */
+    void setFolderMetadata(FolderDiscovery folderDiscovery, FolderMetadataCache folderMetadataCache) {
+        this.folderDiscovery = folderDiscovery;
+        this.folderMetadataCache = folderMetadataCache;
+    }
+
     Folder searchConfigFolder(Folder rFolder) throws MessagingException {
+        if (account.isFolderAnnotationEnabled() && folderDiscovery.isComplete()) {
+            String name = folderDiscovery.getConfigurationFolderName();
+            return name == null ? null : rFolder.getStore().getFolder(name);
+        }
+
+        FolderMetadataCache cache = folderMetadataCache;
+        String cachedName = cache == null ? null : cache.getConfigurationFolderName(account);
+        if (cachedName != null) {
+            //an empty name means, that there is no configuration folder
+            return cachedName.length() == 0 ? null : rFolder.getStore().getFolder(cachedName);
+        }
+
+        Folder configFolder = null;
         for (Folder folder : rFolder.list("*")) {
             if (isConfigurationFolder(folder)) {
-                return folder;
+                configFolder = folder;
+                break;
             }
         }
-        return null;
+
+        if (cache != null) {
+            cache.putConfigurationFolderName(account, configFolder == null ? "" : configFolder.getFullName());
+        }
+        return configFolder;
     }
 
     boolean isConfigurationFolder(Folder folder) throws MessagingException {
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.kore.kolab.notes.AccountInformation;
+import org.kore.kolab.notes.Notebook;
+
+/**
+ * Persists the sync state of the folders together with a copy of the notes in
+ * a file, so that a restarted repository just has to load the changes from the
+ * server
+ *
+ * @author Konrad Renner
+ */
+public class SyncStateStore {
+
+    private final File file;
+
+    public SyncStateStore(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean exists() {
+        return file.isFile();
+    }
+
+    public boolean delete() {
+        return file.delete();
+    }
+
+    /**
+     * Writes the snapshot to a temporary file first, so that a crash while
+     * writing does not destroy the last stored state
+     *
+     * @param snapshot
+     * @throws IOException
+     */
+    void save(Snapshot snapshot) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+
+        File tmp = new File(parent, file.getName() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeObject(snapshot);
+        } finally {
+            out.close();
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to rename " + tmp + " to " + file);
+        }
+    }
+
+    Snapshot load() throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return (Snapshot) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } catch (ClassCastException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    static class Snapshot implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String owner;
+        private final String rootFolder;
+        private final ArrayList<Notebook> notebooks;
+        private final ArrayList<FolderSyncState> folderStates;
+
+        Snapshot(AccountInformation account, String rootFolder, Collection<Notebook> notebooks, Collection<FolderSyncState> folderStates) {
+            this.owner = createOwner(account);
+            this.rootFolder = rootFolder;
+            this.notebooks = new ArrayList<Notebook>(notebooks);
+            this.folderStates = new ArrayList<FolderSyncState>(folderStates);
+        }
+
+        /**
+         * Checks, if the snapshot was created for the given account and root
+         * folder
+         *
+         * @param account
+         * @param rootFolder
+         * @return boolean
+         */
+        boolean isFrom(AccountInformation account, String rootFolder) {
+            return createOwner(account).equals(owner) && this.rootFolder.equals(rootFolder);
+        }
+
+        List<Notebook> getNotebooks() {
+            return Collections.unmodifiableList(notebooks);
+        }
+
+        List<FolderSyncState> getFolderStates() {
+            return Collections.unmodifiableList(folderStates);
+        }
+
+        private static String createOwner(AccountInformation account) {
+            return account.getUsername() + "@" + account.getHost() + ":" + account.getPort();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.UIDSet;
+
+/**
+ * Expunges just the messages with the given UIDs with "UID EXPUNGE", the
+ * server must support UIDPLUS (RFC 4315)
+ *
+ * @author Konrad Renner
+ */
+public class UidExpungeCommand implements IMAPFolder.ProtocolCommand {
+
+    private final long[] uids;
+
+    public UidExpungeCommand(long[] uids) {
+        this.uids = uids;
+    }
+
+    @Override
+    public Object doCommand(IMAPProtocol imapp) throws ProtocolException {
+        imapp.uidexpunge(UIDSet.createUIDSets(uids));
+        return null;
+    }
+}
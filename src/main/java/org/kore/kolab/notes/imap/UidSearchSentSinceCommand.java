@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Gets the UIDs of the messages of the selected folder, which were sent on or
+ * after the given day, with one "UID SEARCH SENTSINCE" command. Unlike
+ * Folder.search no Message objects are created for the result.
+ *
+ * @author Konrad Renner
+ */
+public class UidSearchSentSinceCommand implements IMAPFolder.ProtocolCommand {
+
+    private final Date date;
+    private final Set<Long> uids;
+
+    public UidSearchSentSinceCommand(Date date) {
+        this.date = date;
+        this.uids = new HashSet<Long>();
+    }
+
+    @Override
+    public Object doCommand(IMAPProtocol imapp) throws ProtocolException {
+        Argument command = new Argument();
+        command.writeAtom("SENTSINCE");
+        command.writeAtom(formatDate(date));
+
+        Response[] response = imapp.command("UID SEARCH", command);
+        imapp.notifyResponseHandlers(response);
+        imapp.handleResult(response[response.length - 1]);
+
+        for (int i = 0; i < response.length; i++) {
+            if (response[i] instanceof IMAPResponse && ((IMAPResponse) response[i]).keyEquals("SEARCH")) {
+                long uid;
+                while ((uid = response[i].readLong()) != -1) {
+                    uids.add(uid);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Formats the day of the date in the IMAP date format, e.g. 1-Feb-2016
+     *
+     * @param date
+     * @return String
+     */
+    static String formatDate(Date date) {
+        return new SimpleDateFormat("d-MMM-yyyy", Locale.ENGLISH).format(date);
+    }
+
+    public Set<Long> getUids() {
+        return uids;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.UIDSet;
+
+/**
+ * Flags all messages with the given UIDs as deleted with one "UID STORE"
+ * command
+ *
+ * @author Konrad Renner
+ */
+public class UidStoreDeletedCommand implements IMAPFolder.ProtocolCommand {
+
+    private final long[] uids;
+
+    public UidStoreDeletedCommand(long[] uids) {
+        this.uids = uids;
+    }
+
+    @Override
+    public Object doCommand(IMAPProtocol imapp) throws ProtocolException {
+        String uidSet = UIDSet.toString(UIDSet.createUIDSets(uids));
+
+        Response[] response = imapp.command("UID STORE " + uidSet + " +FLAGS.SILENT (\\Deleted)", null);
+        imapp.notifyResponseHandlers(response);
+        imapp.handleResult(response[response.length - 1]);
+        return null;
+    }
+}
@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.sql.Timestamp;
@@ -56,7 +57,8 @@ public class LocalNotesRepository implements Serializable, NotesRepository, Even
     protected final Map<String, Map<String, Note>> deletedNotesCache;
     protected final KolabParser parser;
     protected final String rootfolder;
-    private boolean disableChangeListening = false;
+    //the changes are just ignored on the thread, which fills the cache with data from a server, so that changes of other threads are not lost
+    private transient ThreadLocal<Boolean> disableChangeListening = new ThreadLocal<Boolean>();
 
     public LocalNotesRepository(KolabParser parser, String rootFolder) {
         this.notebookCache = new ConcurrentHashMap<String, Notebook>();
@@ -68,16 +70,24 @@ public class LocalNotesRepository implements Serializable, NotesRepository, Even
         this.rootfolder = rootFolder;
     }
 
+    /**
+     * Disables the change listening for the current thread
+     */
     protected void disableChangeListening() {
-        this.disableChangeListening = true;
+        this.disableChangeListening.set(Boolean.TRUE);
     }
 
     protected void enableChangeListening() {
-        this.disableChangeListening = false;
+        this.disableChangeListening.remove();
     }
 
     protected boolean isChangeListeningDisabled() {
-        return disableChangeListening;
+        return Boolean.TRUE.equals(disableChangeListening.get());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.disableChangeListening = new ThreadLocal<Boolean>();
     }
 
     @Override
@@ -204,7 +214,7 @@ public class LocalNotesRepository implements Serializable, NotesRepository, Even
 
     @Override
     public void propertyChanged(String uid, Type type, String propertyName, Object oldValue, Object newValue) {
-        if (disableChangeListening) {
+        if (isChangeListeningDisabled()) {
             return;
         }
 
@@ -483,6 +493,6 @@ public class LocalNotesRepository implements Serializable, NotesRepository, Even
 
     @Override
     public String toString() {
-        return "LocalNotesRepository{" + "eventCache=" + eventCache + ", notebookCache=" + notebookCache + ", notesCache=" + notesCache + ", deletedNotebookCache=" + deletedNotebookCache + ", deletedNotesCache=" + deletedNotesCache + ", parser=" + parser + ", rootfolder=" + rootfolder + ", disableChangeListening=" + disableChangeListening + '}';
+        return "LocalNotesRepository{" + "eventCache=" + eventCache + ", notebookCache=" + notebookCache + ", notesCache=" + notesCache + ", deletedNotebookCache=" + deletedNotebookCache + ", deletedNotesCache=" + deletedNotesCache + ", parser=" + parser + ", rootfolder=" + rootfolder + ", disableChangeListening=" + isChangeListeningDisabled() + '}';
     }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class AttachmentTest {
+
+    @Test
+    public void testGetContentHash() {
+        byte[] data = "testGetContentHash".getBytes();
+        Attachment attachment = new Attachment("image.png", "image/png");
+        attachment.setData(data);
+
+        assertEquals(ContentHash.of(data), attachment.getContentHash());
+    }
+
+    @Test
+    public void testGetContentHashOfStream() throws IOException {
+        byte[] data = "testGetContentHashOfStream".getBytes();
+        Attachment attachment = new Attachment("image.png", "image/png");
+        attachment.setData(new ByteArrayInputStream(data));
+
+        assertEquals(ContentHash.of(data), attachment.getContentHash());
+        assertFalse(attachment.isLoaded());
+        assertArrayEquals(data, attachment.getData());
+    }
+
+    @Test
+    public void testSetEqualData() {
+        byte[] data = "testSetEqualData".getBytes();
+        TestLoader loader = new TestLoader(data);
+        Attachment attachment = new Attachment("image.png", "image/png");
+        attachment.setLoader(loader, data.length);
+
+        byte[] loaded = attachment.getData();
+        assertArrayEquals(data, loaded);
+        assertEquals(ContentHash.of(data), attachment.getContentHash());
+
+        //equal data does not change the attachment, so it still refers to the loader
+        attachment.setData("testSetEqualData".getBytes());
+        assertSame(loader, attachment.getLoader());
+        assertArrayEquals(loaded, attachment.getData());
+
+        attachment.setData("changed".getBytes());
+        assertNull(attachment.getLoader());
+        assertEquals(ContentHash.of("changed".getBytes()), attachment.getContentHash());
+    }
+
+    @Test
+    public void testEqualDataIsShared() {
+        Attachment first = new Attachment("first.png", "image/png");
+        first.setData("testEqualDataIsShared".getBytes());
+        Attachment second = new Attachment("second.png", "image/png");
+        second.setData("testEqualDataIsShared".getBytes());
+
+        assertSame(first.getSharedData(), second.getSharedData());
+        assertTrue(first.getContentHash().equals(second.getContentHash()));
+    }
+
+    @Test
+    public void testSharedDataIsNotChanged() {
+        byte[] data = "testSharedDataIsNotChanged".getBytes();
+        Attachment first = new Attachment("first.png", "image/png");
+        first.setData(data);
+        Attachment second = new Attachment("second.png", "image/png");
+        second.setData("testSharedDataIsNotChanged".getBytes());
+
+        //neither the array which was set nor the returned one is shared
+        data[0] = 'X';
+        first.getData()[1] = 'X';
+
+        assertArrayEquals("testSharedDataIsNotChanged".getBytes(), first.getData());
+        assertArrayEquals("testSharedDataIsNotChanged".getBytes(), second.getData());
+        assertEquals(ContentHash.of("testSharedDataIsNotChanged".getBytes()), second.getContentHash());
+    }
+
+    @Test
+    public void testSetNullData() throws IOException {
+        Attachment attachment = new Attachment("image.png", "image/png");
+        attachment.setData("testSetNullData".getBytes());
+        attachment.setData((byte[]) null);
+
+        assertNull(attachment.getData());
+        assertNull(attachment.getContentHash());
+        assertNull(attachment.getLoader());
+        assertFalse(attachment.isLoaded());
+        assertEquals(0, attachment.getSize());
+
+        attachment.setData("testSetNullData".getBytes());
+        assertArrayEquals("testSetNullData".getBytes(), attachment.getData());
+    }
+
+    @Test
+    public void testWithoutLoader() throws IOException {
+        Attachment attachment = new Attachment("image.png", "image/png");
+        attachment.setLoader(null, 0);
+
+        assertNull(attachment.getData());
+        assertNull(attachment.openStream());
+        assertNull(attachment.getContentHash());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        attachment.writeTo(out);
+        assertEquals(0, out.size());
+    }
+
+    static class TestLoader implements Attachment.Loader {
+
+        private final byte[] data;
+
+        TestLoader(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public byte[] load(Attachment attachment) {
+            return data.clone();
+        }
+
+        @Override
+        public InputStream open(Attachment attachment) {
+            return new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public boolean isCaching() {
+            return false;
+        }
+    }
+}
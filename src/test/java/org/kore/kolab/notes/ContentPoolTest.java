@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class ContentPoolTest {
+
+    @Test
+    public void testInternEqualContent() {
+        byte[] content = "testInternEqualContent".getBytes();
+        byte[] equal = "testInternEqualContent".getBytes();
+        byte[] other = "other content".getBytes();
+
+        assertSame(content, ContentPool.intern(content));
+        assertSame(content, ContentPool.intern(equal));
+        assertSame(other, ContentPool.intern(other));
+        assertNotSame(content, ContentPool.intern(other));
+    }
+
+    @Test
+    public void testContentIsPooledAfterGarbageCollection() {
+        byte[] content = "testContentIsPooledAfterGarbageCollection".getBytes();
+        ContentPool.intern(content);
+
+        //nothing references the hash of the content, but the content itself
+        System.gc();
+        System.gc();
+
+        byte[] equal = "testContentIsPooledAfterGarbageCollection".getBytes();
+        assertSame(content, ContentPool.intern(ContentHash.of(equal), equal));
+        assertArrayEquals(equal, content);
+    }
+}
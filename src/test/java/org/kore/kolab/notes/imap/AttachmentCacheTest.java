@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class AttachmentCacheTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        AttachmentCache cache = new AttachmentCache(10);
+        cache.put("one", new byte[4]);
+        cache.put("two", new byte[4]);
+        //access makes "one" the most recently used entry
+        assertNotNull(cache.get("one"));
+
+        cache.put("three", new byte[4]);
+
+        assertNotNull(cache.get("one"));
+        assertNull(cache.get("two"));
+        assertNotNull(cache.get("three"));
+        assertEquals(8, cache.getBytes());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testDataBiggerThanCache() {
+        AttachmentCache cache = new AttachmentCache(10);
+        cache.put("one", new byte[4]);
+        cache.put("big", new byte[11]);
+
+        assertNull(cache.get("big"));
+        assertNotNull(cache.get("one"));
+        assertEquals(4, cache.getBytes());
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        AttachmentCache cache = new AttachmentCache(10);
+        cache.put("one", new byte[4]);
+        cache.put("one", new byte[6]);
+        assertEquals(6, cache.getBytes());
+
+        cache.remove("one");
+        assertNull(cache.get("one"));
+        assertEquals(0, cache.getBytes());
+    }
+}
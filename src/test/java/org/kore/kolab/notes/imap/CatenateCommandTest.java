@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class CatenateCommandTest {
+
+    private static final String URL = "/Notes;UIDVALIDITY=42/;UID=7/;SECTION=";
+
+    @Test
+    public void testCreateUrl() {
+        assertEquals("/Notes/Book%20One;UIDVALIDITY=42/;UID=7/;SECTION=", CatenateCommand.createUrl("Notes/Book One", 42, 7));
+        assertEquals("/Notes%20&-%20More;UIDVALIDITY=1/;UID=2/;SECTION=", CatenateCommand.createUrl("Notes & More", 1, 2));
+        assertEquals("/B&APw-cher%22;UIDVALIDITY=1/;UID=2/;SECTION=", CatenateCommand.createUrl("Bücher\"", 1, 2));
+    }
+
+    @Test
+    public void testLastIndexOf() {
+        byte[] content = CatenateCommand.toAscii("a--b--c");
+
+        assertEquals(4, CatenateCommand.lastIndexOf(content, CatenateCommand.toAscii("--")));
+        assertEquals(0, CatenateCommand.lastIndexOf(content, CatenateCommand.toAscii("a--b--c")));
+        assertEquals(6, CatenateCommand.lastIndexOf(content, CatenateCommand.toAscii("c")));
+        assertEquals(-1, CatenateCommand.lastIndexOf(content, CatenateCommand.toAscii("x")));
+        assertEquals(-1, CatenateCommand.lastIndexOf(content, CatenateCommand.toAscii("a--b--c--")));
+    }
+
+    @Test
+    public void testCreateParts() {
+        String message = "Content-Type: multipart/mixed; boundary=\"b1\"\r\n\r\n--b1\r\nxml\r\n--b1\r\nnew attachment\r\n--b1--\r\n";
+        byte[] delimiter = CatenateCommand.toAscii("\r\n--b1\r\n");
+
+        List<Object> parts = CatenateCommand.createParts(CatenateCommand.toAscii(message), delimiter, URL, Arrays.asList("2", "3"));
+
+        assertEquals(8, parts.size());
+        assertArrayEquals(CatenateCommand.toAscii("Content-Type: multipart/mixed; boundary=\"b1\"\r\n\r\n--b1\r\nxml"), (byte[]) parts.get(0));
+        assertArrayEquals(delimiter, (byte[]) parts.get(1));
+        assertEquals(URL + "2.MIME", parts.get(2));
+        assertEquals(URL + "2", parts.get(3));
+        assertArrayEquals(delimiter, (byte[]) parts.get(4));
+        assertEquals(URL + "3.MIME", parts.get(5));
+        assertEquals(URL + "3", parts.get(6));
+        assertArrayEquals(CatenateCommand.toAscii("\r\n--b1\r\nnew attachment\r\n--b1--\r\n"), (byte[]) parts.get(7));
+    }
+
+    @Test
+    public void testCreatePartsWithoutMultipart() {
+        List<Object> parts = CatenateCommand.createParts(CatenateCommand.toAscii("just text\r\n"), CatenateCommand.toAscii("\r\n--b1\r\n"), URL, Collections.singletonList("2"));
+
+        assertNull(parts);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.io.File;
+import java.io.IOException;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class DiskAttachmentStoreTest {
+
+    private File directory;
+    private DiskAttachmentStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("kolabnotes", ".attachments");
+        directory.delete();
+        store = new DiskAttachmentStore(directory, 10);
+    }
+
+    @After
+    public void tearDown() {
+        store.clear();
+        directory.delete();
+    }
+
+    @Test
+    public void testEqualDataIsStoredOnce() {
+        store.put("one", new byte[]{1, 2, 3});
+        store.put("two", new byte[]{1, 2, 3});
+
+        assertEquals(2, store.size());
+        assertEquals(1, store.getFileCount());
+        assertEquals(3, store.getBytes());
+        assertArrayEquals(new byte[]{1, 2, 3}, store.get("two"));
+
+        store.remove("one");
+        assertEquals(1, store.getFileCount());
+        store.remove("two");
+        assertEquals(0, store.getFileCount());
+        assertEquals(0, store.getBytes());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        store.put("one", new byte[]{1, 1, 1, 1});
+        store.put("two", new byte[]{2, 2, 2, 2});
+        store.get("one");
+        store.put("three", new byte[]{3, 3, 3, 3});
+
+        assertNull(store.get("two"));
+        assertArrayEquals(new byte[]{1, 1, 1, 1}, store.get("one"));
+        assertEquals(8, store.getBytes());
+        assertEquals(2, directory.listFiles().length);
+    }
+
+    @Test
+    public void testOverflowOfCache() {
+        AttachmentCache cache = new AttachmentCache(4, store);
+        cache.put("one", new byte[]{1, 1, 1, 1});
+        cache.put("two", new byte[]{2, 2, 2, 2});
+
+        //"one" was moved to the disk
+        assertEquals(1, store.size());
+        assertArrayEquals(new byte[]{1, 1, 1, 1}, cache.get("one"));
+        //and back into memory, so now "two" is on the disk
+        assertNull(store.get("one"));
+        assertArrayEquals(new byte[]{2, 2, 2, 2}, store.get("two"));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kore.kolab.notes.AccountInformation;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class FolderMetadataCacheTest {
+
+    private File file;
+    private AccountInformation account;
+    private AccountInformation otherAccount;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("kolabnotes", ".metadata");
+        file.delete();
+        account = AccountInformation.createForHost("kolabserver").username("user").password("secret").build();
+        otherAccount = AccountInformation.createForHost("kolabserver").username("other").password("secret").build();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testFolderTypes() {
+        FolderMetadataCache cache = new FolderMetadataCache(60000, 60000, null);
+        assertNull(cache.getFolderDiscovery(account));
+
+        cache.putFolderDiscovery(account, FolderDiscovery.INCOMPLETE);
+        assertNull(cache.getFolderDiscovery(account));
+
+        cache.putFolderDiscovery(account, createDiscovery());
+        FolderDiscovery discovery = cache.getFolderDiscovery(account);
+        assertNotNull(discovery);
+        assertTrue(discovery.isNotesFolder("Notes"));
+        assertFalse(discovery.isNotesFolder("INBOX"));
+        assertEquals("Configuration", discovery.getConfigurationFolderName());
+        assertEquals(1, discovery.getSharedNotesFolderNames().size());
+        assertNull(cache.getFolderDiscovery(otherAccount));
+
+        cache.invalidateFolderTypes(account);
+        assertNull(cache.getFolderDiscovery(account));
+    }
+
+    @Test
+    public void testUntypedFolders() {
+        FolderMetadataCache cache = new FolderMetadataCache(60000, 60000, null);
+        FolderDiscovery discovery = createDiscovery();
+        assertFalse(discovery.isCached());
+        cache.putFolderDiscovery(account, discovery);
+
+        FolderDiscovery cached = cache.getFolderDiscovery(account);
+        assertTrue(cached.isCached());
+        assertNull(cached.getFolderType("Notes/Untyped"));
+
+        cached.update(createDiscovery());
+        assertFalse(cached.isCached());
+        cached.putUntyped("Notes/Untyped");
+        assertFalse(cached.isNotesFolder("Notes/Untyped"));
+        //the copy of the cache is not changed by the operation
+        assertNull(cache.getFolderDiscovery(account).getFolderType("Notes/Untyped"));
+
+        cache.putFolderDiscovery(account, cached);
+        assertEquals(FolderDiscovery.UNTYPED, cache.getFolderDiscovery(account).getFolderType("Notes/Untyped"));
+        assertTrue(cache.getFolderDiscovery(account).isNotesFolder("Notes/Book"));
+    }
+
+    @Test
+    public void testTimeToLive() {
+        FolderMetadataCache cache = new FolderMetadataCache(0, 0, null);
+        cache.putFolderDiscovery(account, createDiscovery());
+        cache.putConfigurationFolderName(account, "Configuration");
+        cache.putRights(account, "Shared Folders/Notes", true, false);
+
+        assertNull(cache.getFolderDiscovery(account));
+        assertNull(cache.getConfigurationFolderName(account));
+        assertNull(cache.getRights(account, "Shared Folders/Notes"));
+    }
+
+    @Test
+    public void testRights() {
+        FolderMetadataCache cache = new FolderMetadataCache(60000, 60000, null);
+        cache.putRights(account, "Shared Folders/Notes", true, false);
+
+        FolderMetadataCache.Rights rights = cache.getRights(account, "Shared Folders/Notes");
+        assertTrue(rights.isNoteCreationAllowed());
+        assertFalse(rights.isNoteModificationAllowed());
+
+        cache.invalidateRights(account, "Shared Folders/Notes");
+        assertNull(cache.getRights(account, "Shared Folders/Notes"));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        FolderMetadataCache cache = new FolderMetadataCache(60000, 60000, file);
+        cache.putFolderDiscovery(account, createDiscovery());
+        cache.putConfigurationFolderName(account, "");
+        cache.putRights(account, "Shared Folders/Notes", true, true);
+        cache.save();
+        assertTrue(file.isFile());
+
+        FolderMetadataCache loaded = new FolderMetadataCache(60000, 60000, file);
+        assertTrue(loaded.getFolderDiscovery(account).isNotesFolder("Notes/Book"));
+        assertEquals("", loaded.getConfigurationFolderName(account));
+        assertTrue(loaded.getRights(account, "Shared Folders/Notes").isNoteModificationAllowed());
+
+        loaded.invalidate();
+        assertNull(loaded.getFolderDiscovery(account));
+    }
+
+    private static FolderDiscovery createDiscovery() {
+        Map<String, String> types = new LinkedHashMap<String, String>();
+        types.put("INBOX", "mail.inbox");
+        types.put("Notes", "note.default");
+        types.put("Notes/Book", "note");
+        types.put("Configuration", "configuration.default");
+        types.put("Shared Folders/Notes", "note");
+        return new FolderDiscovery(types);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class FolderSyncStateTest {
+
+    private FolderSyncState state;
+
+    @Before
+    public void setUp() {
+        state = new FolderSyncState("Notes", "bookOne", false, 42);
+    }
+
+    @Test
+    public void testPutNote() {
+        state.putNote(1, "noteOne", "abc");
+        state.putNote(2, "noteTwo", null);
+
+        assertEquals(1, state.getMessageUid("noteOne"));
+        assertEquals(2, state.getMessageUid("noteTwo"));
+        assertEquals(FolderSyncState.UNKNOWN, state.getMessageUid("noteThree"));
+        assertEquals("noteOne", state.getNoteUid(1));
+        assertEquals("abc", state.getContentHash(1));
+        assertNull(state.getContentHash(2));
+    }
+
+    @Test
+    public void testPutNoteReplacesMessage() {
+        state.putNote(1, "noteOne", null);
+        state.putNote(1, "noteTwo", null);
+
+        assertEquals(FolderSyncState.UNKNOWN, state.getMessageUid("noteOne"));
+        assertEquals(1, state.getMessageUid("noteTwo"));
+        assertEquals(1, state.getMessageUidsPerNote().size());
+    }
+
+    @Test
+    public void testNoteInTwoMessages() {
+        state.putNote(5, "noteOne", null);
+        state.putNote(3, "noteOne", null);
+
+        //the newest message is the one of the note, independent of the order
+        assertEquals(5, state.getMessageUid("noteOne"));
+
+        assertEquals("noteOne", state.removeMessage(5));
+        assertEquals(3, state.getMessageUid("noteOne"));
+    }
+
+    @Test
+    public void testRemoveMessage() {
+        state.putNote(1, "noteOne", null);
+        state.putNote(2, "noteTwo", null);
+
+        assertEquals("noteOne", state.removeMessage(1));
+        assertNull(state.removeMessage(1));
+        assertFalse(state.containsMessage(1));
+        assertTrue(state.containsMessage(2));
+        assertEquals(FolderSyncState.UNKNOWN, state.getMessageUid("noteOne"));
+        assertEquals(2, state.getMessageUid("noteTwo"));
+    }
+
+    @Test
+    public void testIndexAfterDeserialization() throws IOException, ClassNotFoundException {
+        state.putNote(7, "noteOne", null);
+        state.putNote(2, "noteOne", null);
+        state.putNote(4, "noteTwo", null);
+
+        FolderSyncState copy = copy(state);
+
+        //the rebuilt index must be the same as the one which was built with putNote
+        assertEquals(state.getMessageUidsPerNote(), copy.getMessageUidsPerNote());
+        assertEquals(7, copy.getMessageUid("noteOne"));
+
+        //a change after the rebuild must not leave a stale entry
+        copy.removeMessage(7);
+        assertEquals(2, copy.getMessageUid("noteOne"));
+        copy.removeMessage(2);
+        assertEquals(FolderSyncState.UNKNOWN, copy.getMessageUid("noteOne"));
+
+        copy.putNote(8, "noteTwo", null);
+        copy.removeMessage(4);
+        assertEquals(8, copy.getMessageUid("noteTwo"));
+    }
+
+    private static FolderSyncState copy(FolderSyncState state) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(state);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            return (FolderSyncState) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.iap.Response;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class GetAllFolderTypesCommandTest {
+
+    @Test
+    public void testReadValue() {
+        assertEquals("note", GetAllFolderTypesCommand.readValue(new Response("(\"value.shared\" \"note\")")));
+        //the private value comes first
+        assertEquals("note.default", GetAllFolderTypesCommand.readValue(new Response("(\"value.priv\" \"note.default\" \"value.shared\" \"mail\")")));
+        //other attributes are skipped
+        assertEquals("note", GetAllFolderTypesCommand.readValue(new Response("(\"size.shared\" \"4\" \"value.shared\" \"note\")")));
+    }
+
+    @Test
+    public void testReadValueNil() {
+        assertEquals("note", GetAllFolderTypesCommand.readValue(new Response("(\"value.priv\" NIL \"value.shared\" \"note\")")));
+        assertNull(GetAllFolderTypesCommand.readValue(new Response("(\"value.priv\" NIL \"value.shared\" NIL)")));
+        assertNull(GetAllFolderTypesCommand.readValue(new Response("()")));
+    }
+
+    @Test
+    public void testReadValueMalformed() {
+        //no attribute list
+        assertNull(GetAllFolderTypesCommand.readValue(new Response("* NIL")));
+        assertNull(GetAllFolderTypesCommand.readValue(new Response("")));
+    }
+
+    @Test
+    public void testReadValueEscaped() {
+        assertEquals("note \"quoted\" \\", GetAllFolderTypesCommand.readValue(new Response("(\"value.shared\" \"note \\\"quoted\\\" \\\\\")")));
+    }
+
+    @Test
+    public void testReadValueLiteral() {
+        assertEquals("note", GetAllFolderTypesCommand.readValue(new Response("(\"value.shared\" {4}\r\nnote)")));
+    }
+
+    @Test
+    public void testReadAnnotations() {
+        GetAllFolderTypesCommand command = new GetAllFolderTypesCommand();
+        command.readAnnotation(annotation("* ANNOTATION \"Notes\" \"/vendor/kolab/folder-type\" (\"value.priv\" NIL \"value.shared\" \"note\")"));
+        command.readAnnotation(annotation("* ANNOTATION INBOX \"/vendor/kolab/folder-type\" (\"value.shared\" \"mail.inbox\")"));
+        //another entry of the same folder
+        command.readAnnotation(annotation("* ANNOTATION \"Notes\" \"/vendor/cmu/cyrus-imapd/lastupdate\" (\"value.shared\" \"18-Oct-2016 10:00:00 +0200\")"));
+        //folder without a type
+        command.readAnnotation(annotation("* ANNOTATION \"Archive\" \"/vendor/kolab/folder-type\" (\"value.priv\" NIL \"value.shared\" NIL)"));
+        command.readAnnotation(annotation("* ANNOTATION \"Notes/Say \\\"Hi\\\"\" \"/vendor/kolab/folder-type\" (\"value.shared\" \"note\")"));
+        command.readAnnotation(annotation("* ANNOTATION {12}\r\nNotes/Travel \"/vendor/kolab/folder-type\" (\"value.shared\" {4}\r\nnote)"));
+        command.readAnnotation(annotation("* ANNOTATION \"Notizen/B&APw-cher\" \"/vendor/kolab/folder-type\" (\"value.priv\" \"note.default\")"));
+
+        Map<String, String> types = command.getFolderTypes();
+        assertEquals(5, types.size());
+        assertEquals("note", types.get("Notes"));
+        assertEquals("mail.inbox", types.get("INBOX"));
+        assertEquals("note", types.get("Notes/Say \"Hi\""));
+        assertEquals("note", types.get("Notes/Travel"));
+        assertEquals("note.default", types.get("Notizen/Bücher"));
+        assertTrue(!types.containsKey("Archive"));
+    }
+
+    /**
+     * Creates a response and reads its key, like an IMAPResponse does
+     */
+    static Response annotation(String line) {
+        Response response = new Response(line);
+        assertEquals("ANNOTATION", response.readAtom());
+        return response;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import korex.mail.MessagingException;
+import korex.mail.Store;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kore.kolab.notes.AccountInformation;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class ImapConnectionPoolTest {
+
+    private TestConnectionPool pool;
+
+    @Before
+    public void setUp() {
+        AccountInformation info = AccountInformation.createForHost("kolabserver").username("").password("").build();
+        pool = new TestConnectionPool(info, 2);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testBorrowAndRelease() throws MessagingException {
+        Store first = pool.borrow();
+        Store second = pool.borrow();
+        assertEquals(2, pool.getBorrowedCount());
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(2, pool.getCreatedCount());
+
+        pool.release(first);
+        assertEquals(1, pool.getBorrowedCount());
+        assertEquals(1, pool.getIdleCount());
+
+        //the idle connection is reused
+        assertSame(first, pool.borrow());
+        assertEquals(2, pool.getCreatedCount());
+
+        pool.release(first);
+        pool.release(second);
+        assertEquals(0, pool.getBorrowedCount());
+        assertEquals(2, pool.getIdleCount());
+    }
+
+    @Test
+    public void testReleaseDoesNotCheckTheConnection() throws MessagingException {
+        TestStore store = (TestStore) pool.borrow();
+        pool.release(store);
+
+        assertEquals(0, store.getConnectionChecks());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void testReleaseNull() throws MessagingException {
+        pool.borrow();
+        pool.release(null);
+
+        assertEquals(1, pool.getBorrowedCount());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void testTryBorrowExhausted() throws MessagingException {
+        Store first = pool.tryBorrow();
+        Store second = pool.tryBorrow();
+        assertNotNull(first);
+        assertNotNull(second);
+
+        assertNull(pool.tryBorrow());
+        assertEquals(2, pool.getBorrowedCount());
+
+        pool.release(second);
+        assertSame(second, pool.tryBorrow());
+    }
+
+    @Test
+    public void testReleaseWakesBlockedBorrow() throws Exception {
+        final Store first = pool.borrow();
+        pool.borrow();
+
+        final Store[] borrowed = new Store[1];
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    borrowed[0] = pool.borrow();
+                } catch (MessagingException e) {
+                    //checked with the borrowed store
+                }
+            }
+        };
+        waiting.setDaemon(true);
+        waiting.start();
+        while (waiting.isAlive() && waiting.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+        assertTrue(waiting.isAlive());
+
+        pool.release(first);
+        waiting.join(5000);
+
+        assertFalse(waiting.isAlive());
+        assertSame(first, borrowed[0]);
+        assertEquals(2, pool.getCreatedCount());
+    }
+
+    @Test
+    public void testClose() throws MessagingException {
+        TestStore borrowed = (TestStore) pool.borrow();
+        TestStore idle = (TestStore) pool.borrow();
+        pool.release(idle);
+
+        pool.close();
+        assertTrue(pool.isClosed());
+        assertFalse(idle.isConnected());
+        assertEquals(0, pool.getIdleCount());
+
+        //borrowed connections are closed, when they are released
+        assertTrue(borrowed.isConnected());
+        pool.release(borrowed);
+        assertFalse(borrowed.isConnected());
+        assertEquals(0, pool.getBorrowedCount());
+        assertEquals(0, pool.getIdleCount());
+
+        try {
+            pool.borrow();
+            fail("A closed pool must not return connections");
+        } catch (MessagingException e) {
+            //expected
+        }
+    }
+}
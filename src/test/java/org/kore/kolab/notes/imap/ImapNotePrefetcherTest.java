@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.imap.AppendUID;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.kore.kolab.notes.AccountInformation;
+import org.kore.kolab.notes.AuditInformation;
+import org.kore.kolab.notes.Identification;
+import org.kore.kolab.notes.Note;
+import org.kore.kolab.notes.Notebook;
+import org.kore.kolab.notes.v3.KolabConfigurationParserV3;
+import org.kore.kolab.notes.v3.KolabNotesParserV3;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class ImapNotePrefetcherTest {
+
+    private TestConnectionPool pool;
+    private ImapNotesRepository repository;
+
+    @Before
+    public void setUp() {
+        AccountInformation info = AccountInformation.createForHost("kolabserver").username("").password("").build();
+        pool = new TestConnectionPool(info, 1);
+        repository = new ImapNotesRepository(new KolabNotesParserV3(), info, "Notes", new KolabConfigurationParserV3());
+        repository.setConnectionPool(pool);
+    }
+
+    @Test
+    public void testLoadConcurrentlyWithRefresh() throws InterruptedException {
+        Notebook book = repository.createNotebook("bookOne", "Book one");
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Note note = new Note(new Identification("noteOne", "kolabnotes-java"), new AuditInformation(now, now), Note.Classification.PUBLIC, ImapNotesRepository.NOT_LOADED);
+        repository.addNote("noteOne", note);
+        repository.updateSyncState("Notes", book, 1, new long[0], new AppendUID[]{new AppendUID(1, 7)}, Collections.singletonList(note), 1);
+
+        final ImapNotePrefetcher prefetcher = new ImapNotePrefetcher(repository, ImapNotePrefetcher.DEFAULT_BATCH_SIZE, 1, 0);
+        prefetcher.start(Collections.<Note>emptyList());
+
+        final Thread worker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    prefetcher.load(Collections.singletonList("noteOne"));
+                } catch (InterruptedException e) {
+                    //stopped
+                }
+            }
+        };
+
+        //like a refresh, which holds the lock of the repository and borrows the only connection of the pool
+        Thread operation = new Thread() {
+            @Override
+            public void run() {
+                synchronized (repository) {
+                    worker.start();
+                    while (worker.isAlive() && worker.getState() != Thread.State.BLOCKED) {
+                        Thread.yield();
+                    }
+
+                    try {
+                        repository.refresh();
+                    } catch (IllegalStateException e) {
+                        //there is no server
+                    }
+                }
+            }
+        };
+        //a deadlock must not keep the test alive
+        worker.setDaemon(true);
+        operation.setDaemon(true);
+        operation.start();
+
+        operation.join(10000);
+        worker.join(10000);
+        prefetcher.stop();
+
+        assertFalse(operation.isAlive());
+        assertFalse(worker.isAlive());
+        assertEquals(0, pool.getBorrowedCount());
+    }
+
+    @Test
+    public void testEntryOrder() {
+        ImapNotePrefetcher.Entry older = new ImapNotePrefetcher.Entry("older", 1000, 0);
+        ImapNotePrefetcher.Entry newer = new ImapNotePrefetcher.Entry("newer", 2000, 0);
+        ImapNotePrefetcher.Entry sameTime = new ImapNotePrefetcher.Entry("sameTime", 2000, 0);
+        ImapNotePrefetcher.Entry requested = new ImapNotePrefetcher.Entry("requested", 500, 1);
+        ImapNotePrefetcher.Entry requestedLater = new ImapNotePrefetcher.Entry("requestedLater", 500, 2);
+
+        List<ImapNotePrefetcher.Entry> entries = new ArrayList<ImapNotePrefetcher.Entry>(Arrays.asList(older, sameTime, requested, newer, requestedLater));
+        Collections.sort(entries);
+
+        assertEquals(Arrays.asList(requestedLater, requested, newer, sameTime, older), entries);
+        assertEquals(0, newer.compareTo(new ImapNotePrefetcher.Entry("newer", 2000, 0)));
+    }
+
+    @Test
+    public void testPrioritize() {
+        Note first = createUnloadedNote("first", 3000);
+        Note second = createUnloadedNote("second", 2000);
+        Note third = createUnloadedNote("third", 1000);
+        Note loaded = new Note(new Identification("loaded", "kolabnotes-java"), new AuditInformation(new Timestamp(4000), new Timestamp(4000)), Note.Classification.PUBLIC, "Loaded");
+
+        ImapNotePrefetcher prefetcher = new ImapNotePrefetcher(repository, 2, 1, 0);
+        prefetcher.enqueue(Arrays.asList(third, first, loaded, second));
+        //queued notes are not added twice
+        prefetcher.enqueue(Arrays.asList(first));
+        assertEquals(3, prefetcher.getQueueSize());
+
+        prefetcher.prioritize(third);
+        assertEquals(3, prefetcher.getQueueSize());
+        assertEquals(Arrays.asList("third", "first"), prefetcher.pollBatch());
+
+        prefetcher.enqueue(Arrays.asList(first, third));
+        prefetcher.prioritize(second);
+        prefetcher.prioritize(first);
+        assertEquals(Arrays.asList("first", "second"), prefetcher.pollBatch());
+        assertEquals(Arrays.asList("third"), prefetcher.pollBatch());
+        assertEquals(0, prefetcher.getQueueSize());
+    }
+
+    @Test
+    public void testThrottle() throws InterruptedException {
+        assertEquals(0, ImapNotePrefetcher.getMinDuration(1000, 1, 0));
+        assertEquals(1000, ImapNotePrefetcher.getMinDuration(1000, 1, 1000));
+        assertEquals(500, ImapNotePrefetcher.getMinDuration(1000, 1, 2000));
+        //the workers share the bandwidth
+        assertEquals(2000, ImapNotePrefetcher.getMinDuration(1000, 2, 1000));
+
+        //the transfer took long enough already, so there is no wait
+        ImapNotePrefetcher prefetcher = new ImapNotePrefetcher(repository, 1, 1, 1000);
+        long start = System.currentTimeMillis();
+        prefetcher.throttle(1000000, 1000000);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    private Note createUnloadedNote(String uid, long modificationTime) {
+        Timestamp timestamp = new Timestamp(modificationTime);
+        return new Note(new Identification(uid, "kolabnotes-java"), new AuditInformation(timestamp, timestamp), Note.Classification.PUBLIC, ImapNotesRepository.NOT_LOADED);
+    }
+}
@@ -16,9 +16,17 @@
  */
 package org.kore.kolab.notes.imap;
 
+import com.sun.mail.imap.AppendUID;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.SortedSet;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertEquals;
@@ -30,10 +38,12 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.kore.kolab.notes.AccountInformation;
+import org.kore.kolab.notes.Attachment;
 import org.kore.kolab.notes.AuditInformation;
 import org.kore.kolab.notes.Identification;
 import org.kore.kolab.notes.Note;
 import org.kore.kolab.notes.Notebook;
+import org.kore.kolab.notes.RemoteNotesRepository;
 import org.kore.kolab.notes.SharedNotebook;
 import org.kore.kolab.notes.Tag;
 import org.kore.kolab.notes.event.EventListener;
@@ -133,6 +143,19 @@ public class ImapRepositoryTest {
 	assertEquals(EventListener.Type.UPDATE, imapRepository.getEvent("bookOnenoteOne"));
     }
 
+    @Test
+    public void testGetChangedNotebooks() {
+        assertTrue(imapRepository.getChangedNotebooks().isEmpty());
+
+        imapRepository.getNote("bookOnenoteOne").setSummary("Hallo");
+        imapRepository.createNotebook("NewBookUID", "Cool New Book");
+
+        Set<String> changed = imapRepository.getChangedNotebooks();
+        assertEquals(2, changed.size());
+        assertTrue(changed.contains("bookOne"));
+        assertTrue(changed.contains("NewBookUID"));
+    }
+
     @Test
     public void testDeleteNote() {
 	imapRepository.getNotebook("bookOne").deleteNote("bookOnenoteOne");
@@ -303,6 +326,172 @@ public class ImapRepositoryTest {
         imapRepository.merge();
     }
 
+    @Test
+    public void testPushUpdateDeferredWithLocalChanges() {
+        TestConnectionPool pool = new TestConnectionPool(imapRepository.getConnectionPool().getAccount(), 1);
+        imapRepository.setConnectionPool(pool);
+        Notebook book = imapRepository.getNotebook("bookOne");
+        Note note = book.getNote("bookOnenoteOne");
+        imapRepository.updateSyncState("Notes", book, 1, new long[0], new AppendUID[]{new AppendUID(1, 7)}, Collections.singletonList(note), 1);
+        note.setSummary("Local change");
+        assertTrue(imapRepository.hasUnmergedChanges());
+
+        TestPushListener listener = new TestPushListener();
+        assertTrue(imapRepository.pushUpdate("Notes", listener));
+
+        //the server was not asked and the local change is still there
+        assertEquals(0, pool.getCreatedCount());
+        assertEquals(0, listener.exceptions);
+        assertTrue(imapRepository.getDeferredPushFolders().contains("Notes"));
+        assertEquals("Local change", imapRepository.getNote("bookOnenoteOne").getSummary());
+        assertEquals(EventListener.Type.UPDATE, imapRepository.getEvent("bookOnenoteOne"));
+    }
+
+    @Test
+    public void testSyncAfterUidValidityChange() {
+        FolderSyncState state = new FolderSyncState("Notes/Book One", "bookOne", false, 42);
+
+        assertTrue(imapRepository.isIncrementalSyncPossible(state, 42));
+        //the folder was recreated, so it must be loaded completely
+        assertFalse(imapRepository.isIncrementalSyncPossible(state, 43));
+        //the notebook of the folder is not known anymore
+        assertFalse(imapRepository.isIncrementalSyncPossible(new FolderSyncState("Notes/Other", "other", false, 42), 42));
+    }
+
+    @Test
+    public void testSyncWithoutModSeqChange() {
+        FolderSyncState state = new FolderSyncState("Notes/Book One", "bookOne", false, 42);
+        state.setHighestModSeq(100);
+        state.setUidNext(9);
+
+        assertFalse(ImapNotesRepository.isChanged(state, 100));
+        assertTrue(ImapNotesRepository.isChanged(state, 101));
+        assertFalse(ImapNotesRepository.hasNewMessages(state, 9));
+        assertTrue(ImapNotesRepository.hasNewMessages(state, 10));
+    }
+
+    @Test
+    public void testSyncNewMessages() {
+        FolderSyncState state = new FolderSyncState("Notes/Book One", "bookOne", false, 42);
+        state.putNote(7, "bookOnenoteOne", null);
+        state.setUidNext(9);
+
+        //a known message, whose flags were changed
+        assertFalse(ImapNotesRepository.isNewMessage(state, 7));
+        //the last message is always in the range 9:*
+        assertFalse(ImapNotesRepository.isNewMessage(state, 8));
+        assertTrue(ImapNotesRepository.isNewMessage(state, 9));
+
+        assertFalse(ImapNotesRepository.hasExpungedMessages(1, 1, 2));
+        assertTrue(ImapNotesRepository.hasExpungedMessages(1, 1, 1));
+    }
+
+    @Test
+    public void testSyncVanishedMessages() {
+        Notebook book = imapRepository.getNotebook("bookOne");
+        FolderSyncState state = new FolderSyncState("Notes/Book One", "bookOne", false, 42);
+        state.putNote(7, "bookOnenoteOne", null);
+        state.putNote(8, "bookOnenoteTwo", null);
+
+        Set<Long> vanished = ImapNotesRepository.getVanishedUids(state, new HashSet<Long>(Arrays.asList(8L, 9L)));
+        assertEquals(Collections.singleton(7L), vanished);
+
+        imapRepository.removeMessages(book, state, vanished);
+
+        assertFalse(state.containsMessage(7));
+        assertEquals("bookOnenoteTwo", state.getNoteUid(8));
+        assertNull(book.getNote("bookOnenoteOne"));
+        assertNull(imapRepository.getNote("bookOnenoteOne"));
+        assertTrue(book.getNote("bookOnenoteTwo") != null);
+    }
+
+    @Test
+    public void testAdaptChunkSize() {
+        imapRepository.setRefreshChunking(500, 4 * 1024 * 1024);
+
+        //nothing measured, so the maximum is used
+        assertEquals(500, imapRepository.adaptChunkSize(0, 0));
+        assertEquals(500, imapRepository.adaptChunkSize(0, 100));
+        //small notes, the chunk is limited by the chunk size
+        assertEquals(500, imapRepository.adaptChunkSize(100 * 1024, 100));
+        //8 KB per note, a quarter of the budget are 128 notes
+        assertEquals(128, imapRepository.adaptChunkSize(100 * 8 * 1024, 100));
+        //huge notes, the chunk is not smaller than the minimum
+        assertEquals(ImapNotesRepository.MIN_CHUNK_SIZE, imapRepository.adaptChunkSize(100L * 1024 * 1024, 10));
+
+        //the minimum does not exceed a smaller chunk size
+        imapRepository.setRefreshChunking(5, 4 * 1024 * 1024);
+        assertEquals(5, imapRepository.adaptChunkSize(100L * 1024 * 1024, 10));
+    }
+
+    @Test
+    public void testDecodeSubject() {
+        assertNull(ImapNotesRepository.decodeSubject(null));
+        assertEquals("bookOnenoteOne", ImapNotesRepository.decodeSubject("bookOnenoteOne"));
+        assertEquals("bookOne noteOne", ImapNotesRepository.decodeSubject("bookOne\r\n noteOne"));
+        assertEquals("Notiz\u00e4", ImapNotesRepository.decodeSubject("=?UTF-8?B?Tm90aXrDpA==?="));
+    }
+
+    @Test
+    public void testIsStoredUnchanged() throws IOException {
+        Note note = imapRepository.getNote("bookOnenoteOne");
+        Attachment attachment = new Attachment("att1", "image.png", "image/png");
+        attachment.setLoader(new ImapAttachmentLoader(imapRepository, "Notes/Book One", 42, 7, "2", "base64"), 10);
+        note.addAttachments(attachment);
+
+        //the hash of a message is built from the loaded note
+        FolderSyncState state = new FolderSyncState("Notes/Book One", "bookOne", false, 42);
+        state.putNote(7, "bookOnenoteOne", ImapNotesRepository.createContentHash(note));
+
+        //a tracked edit, which leaves the content like it is on the server, but updates the modification date
+        Timestamp lastModificationDate = note.getAuditInformation().getLastModificationDate();
+        String summary = note.getSummary();
+        note.setSummary("changed");
+        note.setSummary(summary);
+        note.getAuditInformation().setLastModificationDate(System.currentTimeMillis());
+        assertEquals(EventListener.Type.UPDATE, imapRepository.getEvent("bookOnenoteOne"));
+        assertTrue(lastModificationDate.before(note.getAuditInformation().getLastModificationDate()));
+        assertTrue(imapRepository.isStoredUnchanged(state, 42, 7, note));
+
+        assertFalse(imapRepository.isStoredUnchanged(null, 42, 7, note));
+        //the folder was recreated
+        assertFalse(imapRepository.isStoredUnchanged(state, 43, 7, note));
+        //the note was not loaded
+        state.putNote(8, "bookOnenoteOne", null);
+        assertFalse(imapRepository.isStoredUnchanged(state, 42, 8, note));
+
+        //the attachment was changed
+        attachment.setData(new byte[]{1, 2, 3});
+        assertFalse(imapRepository.isStoredUnchanged(state, 42, 7, note));
+
+        attachment.rebind(new ImapAttachmentLoader(imapRepository, "Notes/Book One", 42, 7, "2", "base64"));
+        assertTrue(imapRepository.isStoredUnchanged(state, 42, 7, note));
+
+        note.setDescription("changed");
+        assertFalse(imapRepository.isStoredUnchanged(state, 42, 7, note));
+    }
+
+    @Test
+    public void testContentHashWithoutAuditInformation() throws IOException {
+        Note note = imapRepository.getNote("bookOnenoteOne");
+        note.setDescription("This is note one of book one");
+        KolabNotesParserV3 parser = new KolabNotesParserV3();
+
+        //the same note written by another client at another time
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        parser.write(note, xml);
+        String otherXml = xml.toString("UTF-8").replaceAll("<last-modification-date>[^<]*</last-modification-date>", "<last-modification-date>2010-01-01T00:00:00Z</last-modification-date>");
+        Note stored = (Note) parser.parse(new ByteArrayInputStream(otherXml.getBytes("UTF-8")));
+        //the categories are not part of the XML, they are added from the tag configuration
+        stored.addCategories(note.getCategories().toArray(new Tag[note.getCategories().size()]));
+
+        assertFalse(note.getAuditInformation().getLastModificationDate().equals(stored.getAuditInformation().getLastModificationDate()));
+        assertEquals(ImapNotesRepository.createContentHash(note), ImapNotesRepository.createContentHash(stored));
+
+        stored.setSummary("Another summary");
+        assertFalse(ImapNotesRepository.createContentHash(note).equals(ImapNotesRepository.createContentHash(stored)));
+    }
+
     void createTestdata() {
         Calendar cal = Calendar.getInstance();
         cal.setTimeInMillis(System.currentTimeMillis());
@@ -345,4 +534,30 @@ public class ImapRepositoryTest {
         imapRepository.addNotebook("Notes", book);
         book.addListener(imapRepository);
     }
+
+    static class TestPushListener implements RemoteNotesRepository.PushListener {
+
+        int exceptions;
+
+        @Override
+        public void onNoteAdded(Note note) {
+        }
+
+        @Override
+        public void onNoteChanged(Note note) {
+        }
+
+        @Override
+        public void onNoteRemoved(String noteUid) {
+        }
+
+        @Override
+        public void onSyncUpdate(String folderName) {
+        }
+
+        @Override
+        public void onFolderSyncException(String folderName, Exception e) {
+            exceptions++;
+        }
+    }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.AppendUID;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class MultiAppendCommandTest {
+
+    @Test
+    public void testParseUidSet() {
+        assertEquals(Arrays.asList(4L), MultiAppendCommand.parseUidSet("4", 1));
+        assertEquals(Arrays.asList(4L, 5L, 6L, 9L), MultiAppendCommand.parseUidSet("4:6,9", 4));
+        assertEquals(Arrays.asList(9L, 3L, 4L), MultiAppendCommand.parseUidSet("9,3:4", 3));
+    }
+
+    @Test
+    public void testParseReversedRange() {
+        assertEquals(Arrays.asList(6L, 5L, 4L), MultiAppendCommand.parseUidSet("6:4", 3));
+        assertEquals(Arrays.asList(7L), MultiAppendCommand.parseUidSet("7:7", 1));
+    }
+
+    @Test
+    public void testParseUidSetOverLimit() {
+        assertNull(MultiAppendCommand.parseUidSet("1:4294967295", 2));
+        assertNull(MultiAppendCommand.parseUidSet("1,2,3", 2));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseInvalidUidSet() {
+        MultiAppendCommand.parseUidSet("1::2", 2);
+    }
+
+    @Test
+    public void testParseAppendUIDs() {
+        AppendUID[] uids = MultiAppendCommand.parseAppendUIDs(new Response("A5 OK [APPENDUID 38505 3955:3956] APPEND completed"), 2);
+
+        assertEquals(2, uids.length);
+        assertEquals(38505, uids[0].uidvalidity);
+        assertEquals(3955, uids[0].uid);
+        assertEquals(38505, uids[1].uidvalidity);
+        assertEquals(3956, uids[1].uid);
+    }
+
+    @Test
+    public void testParseAppendUIDsCaseInsensitive() {
+        AppendUID[] uids = MultiAppendCommand.parseAppendUIDs("A5 OK [appenduid 1 8] done", 1);
+
+        assertEquals(1, uids.length);
+        assertEquals(8, uids[0].uid);
+    }
+
+    @Test
+    public void testParseAppendUIDsCountMismatch() {
+        assertNull(MultiAppendCommand.parseAppendUIDs("A5 OK [APPENDUID 38505 3955:3957] APPEND completed", 2));
+        assertNull(MultiAppendCommand.parseAppendUIDs("A5 OK [APPENDUID 38505 3955] APPEND completed", 2));
+    }
+
+    @Test
+    public void testParseWithoutAppendUID() {
+        assertNull(MultiAppendCommand.parseAppendUIDs("A5 OK APPEND completed", 1));
+        assertNull(MultiAppendCommand.parseAppendUIDs((Response) null, 1));
+        assertNull(MultiAppendCommand.parseAppendUIDs("A5 OK [APPENDUID 99999999999999999999 1] done", 1));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kore.kolab.notes.AccountInformation;
+import org.kore.kolab.notes.AuditInformation;
+import org.kore.kolab.notes.Identification;
+import org.kore.kolab.notes.Note;
+import org.kore.kolab.notes.Notebook;
+import org.kore.kolab.notes.Tag;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class SyncStateStoreTest {
+
+    private File file;
+    private SyncStateStore store;
+    private AccountInformation account;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("kolabnotes", ".state");
+        file.delete();
+        store = new SyncStateStore(file);
+        account = AccountInformation.createForHost("kolabserver").username("user").password("secret").build();
+    }
+
+    @After
+    public void tearDown() {
+        store.delete();
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Notebook book = new Notebook(new Identification("bookOne", "kolabnotes-java"), new AuditInformation(now, now), Note.Classification.PUBLIC, "Book One");
+        Note note = book.createNote("bookOnenoteOne", "Note one");
+        note.addCategories(Tag.createNewTag("WORK"));
+
+        FolderSyncState state = new FolderSyncState("Notes/Book One", "bookOne", false, 42);
+        state.setHighestModSeq(100);
+        state.setUidNext(3);
+        state.putNote(1, "bookOnenoteOne", "abc");
+        state.putNote(2, "bookOnenoteTwo", null);
+
+        assertFalse(store.exists());
+        store.save(new SyncStateStore.Snapshot(account, "Notes", Collections.singleton(book), Collections.singleton(state)));
+        assertTrue(store.exists());
+
+        SyncStateStore.Snapshot snapshot = store.load();
+
+        assertTrue(snapshot.isFrom(account, "Notes"));
+        assertFalse(snapshot.isFrom(account, "Other"));
+
+        Notebook loadedBook = snapshot.getNotebooks().get(0);
+        assertEquals("Book One", loadedBook.getSummary());
+        assertEquals("Note one", loadedBook.getNote("bookOnenoteOne").getSummary());
+        assertEquals(1, loadedBook.getNote("bookOnenoteOne").getCategories().size());
+
+        FolderSyncState loadedState = snapshot.getFolderStates().get(0);
+        assertEquals(42, loadedState.getUidValidity());
+        assertEquals(100, loadedState.getHighestModSeq());
+        assertEquals(3, loadedState.getUidNext());
+        assertEquals("abc", loadedState.getContentHash(1));
+        assertEquals(2, loadedState.getMessageUid("bookOnenoteTwo"));
+    }
+}
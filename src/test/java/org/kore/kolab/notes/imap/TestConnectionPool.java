@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import korex.mail.MessagingException;
+import korex.mail.Store;
+import org.kore.kolab.notes.AccountInformation;
+
+/**
+ * Connection pool with TestStores instead of connections to a server
+ *
+ * @author Konrad Renner
+ */
+class TestConnectionPool extends ImapConnectionPool {
+
+    private int created;
+
+    TestConnectionPool(AccountInformation account, int size) {
+        super(account, size, 0);
+    }
+
+    @Override
+    Store createStore() throws MessagingException {
+        synchronized (this) {
+            created++;
+        }
+        return new TestStore();
+    }
+
+    synchronized int getCreatedCount() {
+        return created;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.util.Properties;
+import korex.mail.Folder;
+import korex.mail.MessagingException;
+import korex.mail.Session;
+import korex.mail.Store;
+import korex.mail.URLName;
+
+/**
+ * Store without a server for tests, which need connections from a pool. All
+ * folder operations fail.
+ *
+ * @author Konrad Renner
+ */
+class TestStore extends Store {
+
+    private boolean connected;
+    private int connectionChecks;
+
+    TestStore() {
+        super(Session.getInstance(new Properties()), null);
+        this.connected = true;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        connectionChecks++;
+        return connected;
+    }
+
+    /**
+     * @return how often isConnected was called, which is a NOOP with a real
+     * connection
+     */
+    synchronized int getConnectionChecks() {
+        return connectionChecks;
+    }
+
+    /**
+     * Simulates a connection which was closed by the server
+     */
+    synchronized void disconnect() {
+        connected = false;
+    }
+
+    @Override
+    public synchronized void close() throws MessagingException {
+        connected = false;
+    }
+
+    @Override
+    public Folder getDefaultFolder() throws MessagingException {
+        throw new MessagingException("There is no server");
+    }
+
+    @Override
+    public Folder getFolder(String name) throws MessagingException {
+        throw new MessagingException("There is no server");
+    }
+
+    @Override
+    public Folder getFolder(URLName url) throws MessagingException {
+        throw new MessagingException("There is no server");
+    }
+}
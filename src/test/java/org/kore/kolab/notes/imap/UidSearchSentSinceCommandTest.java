@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 Konrad Renner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.kore.kolab.notes.imap;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Konrad Renner
+ */
+public class UidSearchSentSinceCommandTest {
+
+    @Test
+    public void testFormatDate() {
+        assertEquals("1-Feb-2016", UidSearchSentSinceCommand.formatDate(createDate(2016, Calendar.FEBRUARY, 1)));
+        assertEquals("31-Dec-2015", UidSearchSentSinceCommand.formatDate(createDate(2015, Calendar.DECEMBER, 31)));
+    }
+
+    @Test
+    public void testFormatDateWithOtherDefaultLocale() {
+        Locale defaultLocale = Locale.getDefault();
+        try {
+            //the month names must be English, e.g. not "1-Mai-2016"
+            Locale.setDefault(Locale.GERMAN);
+            assertEquals("1-May-2016", UidSearchSentSinceCommand.formatDate(createDate(2016, Calendar.MAY, 1)));
+            assertEquals("3-Oct-2016", UidSearchSentSinceCommand.formatDate(createDate(2016, Calendar.OCTOBER, 3)));
+
+            Locale.setDefault(Locale.FRENCH);
+            assertEquals("1-Feb-2016", UidSearchSentSinceCommand.formatDate(createDate(2016, Calendar.FEBRUARY, 1)));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    private static Date createDate(int year, int month, int day) {
+        Calendar date = Calendar.getInstance();
+        date.clear();
+        date.set(year, month, day, 23, 59);
+        return date.getTime();
+    }
+}
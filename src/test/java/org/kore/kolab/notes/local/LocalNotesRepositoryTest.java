@@ -149,6 +149,32 @@ public class LocalNotesRepositoryTest {
         assertFalse(LocalNotesRepository.PropertyChangeStrategy.valueChanged("test", "test"));
     }
 
+    @Test
+    public void testChangeListeningDisabledJustForCurrentThread() throws InterruptedException {
+        LocalNotesRepository repo = new LocalNotesRepository(new KolabNotesParserV3(), "Notes");
+        Notebook book = repo.createNotebook("book1", "Book");
+        final Note note = book.createNote("note1", "First Note");
+        repo.eventCache.clear();
+
+        repo.disableChangeListening();
+        try {
+            note.setDescription("from the server");
+            assertNull(repo.getEvent("note1"));
+
+            Thread other = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    note.setDescription("from the user");
+                }
+            });
+            other.start();
+            other.join();
+            assertEquals(EventListener.Type.UPDATE, repo.getEvent("note1"));
+        } finally {
+            repo.enableChangeListening();
+        }
+    }
+
     @Test
     public void testNoteExportImportWithStreams() throws IOException {
         LocalNotesRepository repo = new LocalNotesRepository(new KolabNotesParserV3(), "Notes");